@@ -0,0 +1,54 @@
+package bobik;
+
+/**
+ * Builds realistic Bobik payloads for benchmarks
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param urls number of scraped urls
+     * @param rows number of values scraped by each query on each url
+     * @return a job status response with results, as sent by Bobik
+     */
+    static String resultsPayload(int urls, int rows) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"job\":\"4fe3a1c2b7d04e0001000001\",\"progress\":1.0,\"estimated_time_left_ms\":0,\"errors\":[],\"results\":{");
+        for (int u=0; u<urls; u++) {
+            if (u > 0)
+                sb.append(',');
+            sb.append("\"http://www.example.com/search/results.jsp?page=").append(u).append("\":");
+            sb.append(parallelArrays(rows, 3));
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    /**
+     * @param rows length of each array
+     * @param columns number of arrays
+     * @return a hash of parallel arrays, as scraped from a single url
+     */
+    static String parallelArrays(int rows, int columns) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (int c=0; c<columns; c++) {
+            if (c > 0)
+                sb.append(',');
+            sb.append("\"column_").append(c).append("\":[");
+            for (int r=0; r<rows; r++) {
+                if (r > 0)
+                    sb.append(',');
+                if (c % 2 == 0)
+                    sb.append("\"Advil Liqui-Gels, 200mg Capsules, ").append(r).append(" ct\"");
+                else
+                    sb.append(r).append('.').append(r % 100);
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
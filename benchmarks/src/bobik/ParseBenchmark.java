@@ -0,0 +1,66 @@
+package bobik;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading a job's results off the wire: buffering the response and building a JSONObject tree,
+ * versus parsing it incrementally for a StreamingJobListener or straight into a ScrapeResult
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int urls;
+
+    @Param({"20"})
+    public int rows;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        payload = BenchmarkData.resultsPayload(urls, rows).getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public JSONObject bufferedParse() throws Exception {
+        String body = BobikClient.convertStreamToString(new ByteArrayInputStream(payload));
+        return new JSONObject(body).getJSONObject(BobikConstants.RESULTS_TOKEN_LABEL);
+    }
+
+    @Benchmark
+    public ScrapeResult typedParse() throws Exception {
+        return ScrapeResult.read(null, new InputStreamReader(new ByteArrayInputStream(payload), "UTF-8"));
+    }
+
+    @Benchmark
+    public void streamingParse(Blackhole blackhole) throws Exception {
+        JsonStreamReader reader = new JsonStreamReader(new InputStreamReader(new ByteArrayInputStream(payload), "UTF-8"));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(BobikConstants.RESULTS_TOKEN_LABEL)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    blackhole.consume(reader.nextName());
+                    blackhole.consume(reader.readValue());
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        reader.close();
+    }
+}
@@ -0,0 +1,50 @@
+package bobik;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serialization of the GET requests sent on every status check
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QuerySerializationBenchmark {
+
+    private JSONObject statusCheck;
+    private JSONObject batchedStatusCheck;
+
+    @Setup
+    public void setUp() throws Exception {
+        statusCheck = new JSONObject();
+        statusCheck.accumulate(BobikConstants.JOB_TOKEN_LABEL, "4fe3a1c2b7d04e0001000001");
+        statusCheck.accumulate(BobikConstants.SKIP_DATA_TOKEN_LABEL, true);
+        statusCheck.put(BobikConstants.AUTH_TOKEN_LABEL, "Xo4Ab7Ve2Df1Kq9Lm3Np");
+
+        StringBuilder ids = new StringBuilder();
+        for (int i=0; i<100; i++) {
+            if (i > 0)
+                ids.append(',');
+            ids.append("4fe3a1c2b7d04e000100").append(1000 + i);
+        }
+        batchedStatusCheck = new JSONObject();
+        batchedStatusCheck.put(BobikConstants.JOBS_TOKEN_LABEL, ids.toString());
+        batchedStatusCheck.put(BobikConstants.SKIP_DATA_TOKEN_LABEL, true);
+        batchedStatusCheck.put(BobikConstants.AUTH_TOKEN_LABEL, "Xo4Ab7Ve2Df1Kq9Lm3Np");
+    }
+
+    @Benchmark
+    public String statusCheck() throws Exception {
+        return BobikClient.buildQueryString(statusCheck);
+    }
+
+    @Benchmark
+    public String batchedStatusCheck() throws Exception {
+        return BobikClient.buildQueryString(batchedStatusCheck);
+    }
+}
@@ -0,0 +1,50 @@
+package bobik;
+
+import bobik.loadtest.MockBobikServer;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a complete scrape (submit, status check, result fetch) against an in-process MockBobikServer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScrapeBenchmark {
+
+    @Param({"1", "100"})
+    public int urls;
+
+    private MockBobikServer server;
+    private BobikClient bobik;
+    private JSONObject request;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new MockBobikServer();
+        server.setJobDurationMs(0);
+        server.start(0);
+        bobik = new BobikClient("BENCHMARK_TOKEN");
+        server.configure(bobik);
+        request = new JSONObject();
+        for (int u=0; u<urls; u++)
+            request.accumulate("urls", "http://www.example.com/product/" + u);
+        request.accumulate("queries", "//a/@href");
+    }
+
+    @TearDown
+    public void tearDown() {
+        bobik.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public JSONObject scrape() throws Exception {
+        return bobik.scrapeAsync(request).get();
+    }
+}
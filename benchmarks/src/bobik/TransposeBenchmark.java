@@ -0,0 +1,61 @@
+package bobik;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures BobikHelper.transpose against walking a ResultTable in place
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransposeBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int rows;
+
+    @Param({"2", "10", "50"})
+    public int columns;
+
+    private JSONObject input;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() throws Exception {
+        input = new JSONObject(BenchmarkData.parallelArrays(rows, columns));
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public List<JSONObject> transpose() throws Exception {
+        return BobikHelper.transpose(input);
+    }
+
+    @Benchmark
+    public List<JSONObject> transposeParallel() throws Exception {
+        return BobikHelper.transpose(input, executor, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Benchmark
+    public void walkResultTable(Blackhole blackhole) throws Exception {
+        ResultTable table = new ResultTable(input);
+        List<String> keys = table.keys();
+        for (int i=0; i<table.size(); i++)
+            for (String key : keys)
+                blackhole.consume(table.get(i, key));
+    }
+}
@@ -0,0 +1,165 @@
+package bobik.loadtest;
+
+import bobik.BobikClient;
+import bobik.InMemoryBobikMetrics;
+import bobik.Job;
+import bobik.JobCompletionHandler;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many concurrent scraping jobs through a BobikClient and reports latency and throughput.
+ * By default, the client is pointed at an in-process MockBobikServer.
+ * <br><br>
+ * Usage: LoadDriver [jobs] [concurrency] [urls_per_job] [job_duration_ms] [error_rate] [threads]
+ * <br>
+ * <i>threads</i> is either "pool" (the default) or "virtual", to make blocking calls on virtual threads.
+ */
+public class LoadDriver {
+
+    public static void main(String[] args) throws Exception {
+        int jobs = intArg(args, 0, 1000);
+        int concurrency = intArg(args, 1, 100);
+        int urlsPerJob = intArg(args, 2, 10);
+        int jobDurationMs = intArg(args, 3, 2000);
+        double errorRate = args != null && args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        boolean virtualThreads = args != null && args.length > 5 && args[5].equals("virtual");
+
+        MockBobikServer server = new MockBobikServer();
+        server.setJobDurationMs(jobDurationMs);
+        server.setErrorRate(errorRate);
+        server.start(0);
+        BobikClient bobik = virtualThreads ? BobikClient.withVirtualThreads("LOAD_TEST_TOKEN") : new BobikClient("LOAD_TEST_TOKEN");
+        server.configure(bobik);
+        bobik.setTimeoutMs(Math.max(30000, jobDurationMs * 10));
+        InMemoryBobikMetrics metrics = new InMemoryBobikMetrics();
+        bobik.setMetrics(metrics);
+        try {
+            Report report = run(bobik, jobs, concurrency, urlsPerJob);
+            System.out.println(report);
+            System.out.println("Server saw " + server.getSubmits() + " submits, " + server.getStatusChecks() + " status checks, "
+                    + server.getBatchedStatusChecks() + " batched status checks, " + server.getResultFetches() + " result fetches");
+            System.out.println(metrics);
+            System.out.println("retries: " + bobik.getRetryPolicy().getRetries() + ", succeeded after retry: "
+                    + bobik.getRetryPolicy().getSuccessesAfterRetry() + ", gave up: "
+                    + (bobik.getRetryPolicy().getExhausted() + bobik.getRetryPolicy().getNotRetryable())
+                    + ", short-circuited: " + bobik.getCircuitBreaker().getShortCircuited());
+        } finally {
+            bobik.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * Submits jobs, keeping at most <i>concurrency</i> of them in flight, and waits for all of them to finish
+     * @param bobik client to load
+     * @param jobs total number of jobs to run
+     * @param concurrency max number of jobs in flight
+     * @param urlsPerJob
+     * @return measurements
+     * @throws Exception
+     */
+    public static Report run(final BobikClient bobik, final int jobs, int concurrency, final int urlsPerJob) throws Exception {
+        final long[] submitLatencyNs = new long[jobs];
+        final long[] completionLatencyNs = new long[jobs];
+        final AtomicInteger failures = new AtomicInteger();
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final CountDownLatch finished = new CountDownLatch(jobs);
+        ExecutorService submitters = Executors.newFixedThreadPool(concurrency);
+
+        long start = System.nanoTime();
+        for (int i=0; i<jobs; i++) {
+            final int index = i;
+            inFlight.acquire();
+            submitters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long submitted = System.nanoTime();
+                    try {
+                        Job job = bobik.scrapeAsync(request(index, urlsPerJob));
+                        submitLatencyNs[index] = System.nanoTime() - submitted;
+                        job.whenComplete(new JobCompletionHandler() {
+                            @Override
+                            public void onComplete(Job job, JSONObject scraped_data, Exception failure) {
+                                completionLatencyNs[index] = System.nanoTime() - submitted;
+                                if (failure != null)
+                                    failures.incrementAndGet();
+                                inFlight.release();
+                                finished.countDown();
+                            }
+                        });
+                    } catch (Exception e) {
+                        submitLatencyNs[index] = System.nanoTime() - submitted;
+                        completionLatencyNs[index] = submitLatencyNs[index];
+                        failures.incrementAndGet();
+                        inFlight.release();
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+        finished.await();
+        long elapsedNs = System.nanoTime() - start;
+        submitters.shutdown();
+        return new Report(jobs, failures.get(), elapsedNs, submitLatencyNs, completionLatencyNs);
+    }
+
+    private static JSONObject request(int index, int urls) throws Exception {
+        JSONObject request = new JSONObject();
+        for (int u=0; u<urls; u++)
+            request.accumulate("urls", "http://www.example.com/load/" + index + "/" + u);
+        request.accumulate("queries", "//a/@href");
+        return request;
+    }
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        return args != null && args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+
+    /**
+     * Latency percentiles and throughput of a load run
+     */
+    public static class Report {
+        public final int jobs;
+        public final int failures;
+        public final double jobsPerSecond;
+        public final double submitP50Ms, submitP99Ms;
+        public final double completionP50Ms, completionP99Ms;
+
+        Report(int jobs, int failures, long elapsedNs, long[] submitLatencyNs, long[] completionLatencyNs) {
+            this.jobs = jobs;
+            this.failures = failures;
+            this.jobsPerSecond = jobs / (elapsedNs / 1e9);
+            long[] submits = submitLatencyNs.clone();
+            long[] completions = completionLatencyNs.clone();
+            Arrays.sort(submits);
+            Arrays.sort(completions);
+            submitP50Ms = percentileMs(submits, 0.50);
+            submitP99Ms = percentileMs(submits, 0.99);
+            completionP50Ms = percentileMs(completions, 0.50);
+            completionP99Ms = percentileMs(completions, 0.99);
+        }
+
+        private static double percentileMs(long[] sorted, double percentile) {
+            if (sorted.length == 0)
+                return 0;
+            int index = (int)Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d jobs (%d failed), %.1f jobs/sec%n"
+                    + "submit latency:     p50 %.1fms, p99 %.1fms%n"
+                    + "completion latency: p50 %.1fms, p99 %.1fms",
+                    jobs, failures, jobsPerSecond, submitP50Ms, submitP99Ms, completionP50Ms, completionP99Ms);
+        }
+    }
+}
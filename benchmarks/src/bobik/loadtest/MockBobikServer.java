@@ -0,0 +1,414 @@
+package bobik.loadtest;
+
+import bobik.BobikClient;
+import bobik.BobikConstants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An embeddable stand-in for the Bobik API, for load testing and benchmarking clients without touching production.
+ * Implements job submission, single and batched status checks (with results, honoring results_offset) and aborts.
+ * Responses are gzipped for clients that accept it, and gzipped request bodies are decoded.
+ * Jobs progress linearly over a configurable duration; latency and errors can be injected.
+ * Jobs are only visible to the auth token that submitted them, and each token can be given a quota of running jobs,
+ * past which submissions are turned away with 429.
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    MockBobikServer server = new MockBobikServer();
+    server.setJobDurationMs(2000);
+    server.start(0);
+    BobikClient bobik = new BobikClient("ANY_TOKEN");
+    server.configure(bobik);
+ * }
+ * </pre>
+ */
+public class MockBobikServer {
+
+    private static final String API_PATH = "/api/v1/jobs";
+    private static final String ABORT_PATH = "/jobs/";
+
+    /*
+     * Returned by handlers to have the request turned away with 429
+     */
+    private static final JSONObject RATE_LIMITED = new JSONObject();
+
+    private HttpServer server;
+    private ExecutorService workers;
+    private final Map<String, MockJob> jobs = new ConcurrentHashMap<String, MockJob>();
+    private final AtomicLong nextJobId = new AtomicLong(0x4fe3a1c2b7d04eL);
+    private final Random random = new Random();
+
+    private volatile long jobDurationMs = 1000;
+    private volatile long estimatedTimeLeftMs = -1;
+    private volatile long latencyMs = 0;
+    private volatile double errorRate = 0;
+    private volatile int rowsPerUrl = 10;
+    private volatile boolean compression = true;
+    private volatile int maxJobsPerToken = 0;
+
+    private final AtomicLong submits = new AtomicLong();
+    private final AtomicLong statusChecks = new AtomicLong();
+    private final AtomicLong batchedStatusChecks = new AtomicLong();
+    private final AtomicLong resultFetches = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    /**
+     * Starts serving on localhost
+     * @param port 0 to pick any free port
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        workers = Executors.newCachedThreadPool();
+        server.setExecutor(workers);
+        server.createContext(API_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange, false);
+            }
+        });
+        server.createContext(ABORT_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange, true);
+            }
+        });
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null)
+            server.stop(0);
+        if (workers != null)
+            workers.shutdownNow();
+    }
+
+    /**
+     * Points a client at this server
+     * @param client
+     */
+    public void configure(BobikClient client) {
+        client.setApiUrl(getApiUrl());
+        client.setAbortUrl(getAbortUrl());
+    }
+
+    public String getApiUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + API_PATH;
+    }
+
+    public String getAbortUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/jobs";
+    }
+
+    private void serve(HttpExchange exchange, boolean abort) throws IOException {
+        try {
+            if (latencyMs > 0)
+                Thread.sleep(latencyMs);
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                respond(exchange, 503, "{\"errors\":[\"Injected failure\"]}");
+                return;
+            }
+            JSONObject response;
+            if (abort)
+                response = abort(exchange.getRequestURI().getPath(), parseQuery(exchange.getRequestURI().getRawQuery()));
+            else if (exchange.getRequestMethod().equalsIgnoreCase("POST"))
+                response = submit(readBody(exchange));
+            else
+                response = status(parseQuery(exchange.getRequestURI().getRawQuery()));
+            if (response == RATE_LIMITED) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, "{\"errors\":[\"Too many running jobs\"]}");
+                return;
+            }
+            if (response == null)
+                respond(exchange, 404, "{\"errors\":[\"No such job\"]}");
+            else
+                respond(exchange, 200, response.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{}");
+        } catch (JSONException e) {
+            respond(exchange, 400, "{\"errors\":[" + JSONObject.quote(e.getMessage()) + "]}");
+        }
+    }
+
+    private JSONObject submit(String body) throws JSONException {
+        JSONObject request = new JSONObject(body);
+        String token = request.optString(BobikConstants.AUTH_TOKEN_LABEL, null);
+        if (maxJobsPerToken > 0 && getRunningJobs(token) >= maxJobsPerToken) {
+            rateLimited.incrementAndGet();
+            return RATE_LIMITED;
+        }
+        submits.incrementAndGet();
+        JSONArray urls = request.optJSONArray("urls");
+        if (urls == null) {
+            urls = new JSONArray();
+            if (request.has("urls"))
+                urls.put(request.getString("urls"));
+        }
+        String id = Long.toHexString(nextJobId.incrementAndGet());
+        jobs.put(id, new MockJob(urls, System.currentTimeMillis(), token));
+        JSONObject response = new JSONObject();
+        response.put(BobikConstants.JOB_TOKEN_LABEL, id);
+        return response;
+    }
+
+    private JSONObject status(Map<String, String> params) throws JSONException {
+        boolean no_results = !"false".equals(params.get(BobikConstants.SKIP_DATA_TOKEN_LABEL));
+        String batch = params.get(BobikConstants.JOBS_TOKEN_LABEL);
+        if (batch != null) {
+            batchedStatusChecks.incrementAndGet();
+            JSONArray statuses = new JSONArray();
+            for (String id : batch.split(",")) {
+                MockJob job = getJob(id, params);
+                if (job != null)
+                    statuses.put(job.status(id, true, 0));
+            }
+            JSONObject response = new JSONObject();
+            response.put(BobikConstants.JOBS_TOKEN_LABEL, statuses);
+            return response;
+        }
+        String id = params.get(BobikConstants.JOB_TOKEN_LABEL);
+        MockJob job = id == null ? null : getJob(id, params);
+        if (job == null)
+            return null;
+        if (no_results)
+            statusChecks.incrementAndGet();
+        else
+            resultFetches.incrementAndGet();
+        String offset = params.get(BobikConstants.RESULTS_OFFSET_TOKEN_LABEL);
+        return job.status(id, no_results, offset == null ? 0 : Integer.parseInt(offset));
+    }
+
+    private JSONObject abort(String path, Map<String, String> params) throws JSONException {
+        aborts.incrementAndGet();
+        // path is /jobs/JOB_ID/abort
+        String[] parts = path.split("/");
+        MockJob job = parts.length >= 3 ? getJob(parts[2], params) : null;
+        if (job == null)
+            return null;
+        job.aborted = true;
+        return new JSONObject();
+    }
+
+    /**
+     * @param id
+     * @param params
+     * @return the job, if it exists and belongs to the auth token among the params
+     */
+    private MockJob getJob(String id, Map<String, String> params) {
+        MockJob job = jobs.get(id);
+        if (job == null || (job.token != null && !job.token.equals(params.get(BobikConstants.AUTH_TOKEN_LABEL))))
+            return null;
+        return job;
+    }
+
+    private int getRunningJobs(String token) {
+        int running = 0;
+        for (MockJob job : jobs.values()) {
+            if (job.isRunning() && (token == null ? job.token == null : token.equals(job.token)))
+                running++;
+        }
+        return running;
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null)
+            return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+            in = new GZIPInputStream(in);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1)
+            body.write(buffer, 0, count);
+        in.close();
+        return body.toString("UTF-8");
+    }
+
+    private void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (compression && accepted != null && accepted.toLowerCase().contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(bytes);
+            out.close();
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+
+    /**
+     * A job making linear progress over jobDurationMs
+     */
+    private class MockJob {
+        final JSONArray urls;
+        final long startTime;
+        final String token;
+        volatile boolean aborted = false;
+
+        MockJob(JSONArray urls, long startTime, String token) {
+            this.urls = urls;
+            this.startTime = startTime;
+            this.token = token;
+        }
+
+        boolean isRunning() {
+            return !aborted && System.currentTimeMillis() - startTime < jobDurationMs;
+        }
+
+        JSONObject status(String id, boolean no_results, int offset) throws JSONException {
+            long elapsed = System.currentTimeMillis() - startTime;
+            double progress = aborted || jobDurationMs <= 0 ? 1.0 : Math.min(1.0, (double)elapsed / jobDurationMs);
+            long time_left = estimatedTimeLeftMs >= 0 ? estimatedTimeLeftMs : Math.max(0, jobDurationMs - elapsed);
+            JSONObject status = new JSONObject();
+            status.put(BobikConstants.JOB_TOKEN_LABEL, id);
+            status.put(BobikConstants.PROGRESS_JSON_LABEL, progress);
+            status.put(BobikConstants.ESTIMATED_TIME_REMAINING_TOKEN_LABEL, progress == 1.0 ? 0 : time_left);
+            status.put(BobikConstants.ERROR_TOKEN_LABEL, new JSONArray());
+            if (!no_results) {
+                JSONObject results = new JSONObject();
+                int done = (int)Math.floor(progress * urls.length());
+                for (int u=offset; u<done; u++)
+                    results.put(urls.getString(u), scrape(u));
+                status.put(BobikConstants.RESULTS_TOKEN_LABEL, results);
+            }
+            return status;
+        }
+
+        private JSONObject scrape(int url_index) throws JSONException {
+            JSONObject data = new JSONObject();
+            for (int r=0; r<rowsPerUrl; r++) {
+                data.accumulate("title", "Item " + r + " of url " + url_index);
+                data.accumulate("price", r * 1.25);
+            }
+            return data;
+        }
+    }
+
+
+    public long getJobDurationMs() {
+        return jobDurationMs;
+    }
+    /**
+     * @param jobDurationMs how long every job takes to complete
+     */
+    public void setJobDurationMs(long jobDurationMs) {
+        this.jobDurationMs = jobDurationMs;
+    }
+    public long getEstimatedTimeLeftMs() {
+        return estimatedTimeLeftMs;
+    }
+    /**
+     * @param estimatedTimeLeftMs reported in every status check, or -1 (the default) to report the actual time left
+     */
+    public void setEstimatedTimeLeftMs(long estimatedTimeLeftMs) {
+        this.estimatedTimeLeftMs = estimatedTimeLeftMs;
+    }
+    public long getLatencyMs() {
+        return latencyMs;
+    }
+    /**
+     * @param latencyMs added to every response
+     */
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+    public double getErrorRate() {
+        return errorRate;
+    }
+    /**
+     * @param errorRate fraction of requests (0..1) answered with a 503
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+    public int getRowsPerUrl() {
+        return rowsPerUrl;
+    }
+    public void setRowsPerUrl(int rowsPerUrl) {
+        this.rowsPerUrl = rowsPerUrl;
+    }
+    public int getMaxJobsPerToken() {
+        return maxJobsPerToken;
+    }
+    /**
+     * @param maxJobsPerToken number of running jobs each auth token is allowed before submissions get 429. 0 means no limit.
+     */
+    public void setMaxJobsPerToken(int maxJobsPerToken) {
+        this.maxJobsPerToken = maxJobsPerToken;
+    }
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+    public boolean isCompression() {
+        return compression;
+    }
+    /**
+     * @param compression whether to gzip responses for clients that accept it
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+    public long getSubmits() {
+        return submits.get();
+    }
+    public long getStatusChecks() {
+        return statusChecks.get();
+    }
+    public long getBatchedStatusChecks() {
+        return batchedStatusChecks.get();
+    }
+    public long getResultFetches() {
+        return resultFetches.get();
+    }
+    public long getAborts() {
+        return aborts.get();
+    }
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+}
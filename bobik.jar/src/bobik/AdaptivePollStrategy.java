@@ -0,0 +1,121 @@
+package bobik;
+
+import java.util.Random;
+
+/**
+ * Default PollStrategy. Predicts when a job will finish from both Bobik's estimate and the progress
+ * velocity observed between status checks. When the two agree, the next check is timed for the predicted
+ * completion; otherwise the job is checked again halfway there, so a bad estimate is corrected quickly
+ * without either hammering the API or oversleeping a finished job.
+ * Delays are clamped to [minIntervalMs, maxIntervalMs] and randomized by a small jitter so that
+ * jobs submitted together don't poll in lockstep. Failed status checks are retried with exponential backoff.
+ * @author Eugene Mirkin
+ */
+public class AdaptivePollStrategy implements PollStrategy {
+
+    /*
+     * Server and velocity predictions within this ratio of each other are considered to agree
+     */
+    private static final double AGREEMENT_RATIO = 0.25;
+
+    private final Random random = new Random();
+
+    private long minIntervalMs = 250;
+    private long maxIntervalMs = 30000;
+    private long initialIntervalMs = 1000;
+    private double jitter = 0.1;
+    private long errorBackoffMs = 1000;
+    private int maxConsecutiveErrors = 5;
+
+    @Override
+    public long nextPollDelayMs(float progress, float previousProgress, long sincePreviousMs, long estimatedTimeLeftMs, int consecutiveErrors) {
+        if (consecutiveErrors > 0) {
+            if (consecutiveErrors > maxConsecutiveErrors)
+                return -1;
+            long backoff = errorBackoffMs << Math.min(consecutiveErrors - 1, 20);
+            return clamp(jitter(backoff));
+        }
+
+        long velocityEstimateMs = -1;
+        if (progress > previousProgress && sincePreviousMs > 0)
+            velocityEstimateMs = (long)((1.0 - progress) * sincePreviousMs / (progress - previousProgress));
+
+        long delay;
+        if (estimatedTimeLeftMs >= 0 && velocityEstimateMs >= 0) {
+            long low = Math.min(estimatedTimeLeftMs, velocityEstimateMs);
+            long high = Math.max(estimatedTimeLeftMs, velocityEstimateMs);
+            boolean agree = high - low <= AGREEMENT_RATIO * high;
+            delay = agree ? (low + high) / 2 : low / 2;
+        } else if (estimatedTimeLeftMs >= 0) {
+            delay = estimatedTimeLeftMs;
+        } else if (velocityEstimateMs >= 0) {
+            delay = velocityEstimateMs / 2;
+        } else {
+            delay = initialIntervalMs;
+        }
+        return clamp(jitter(delay));
+    }
+
+    private long jitter(long delay) {
+        if (jitter <= 0)
+            return delay;
+        double factor;
+        synchronized (random) {
+            factor = 1 + jitter * (2 * random.nextDouble() - 1);
+        }
+        return (long)(delay * factor);
+    }
+
+    private long clamp(long delay) {
+        return Math.min(maxIntervalMs, Math.max(minIntervalMs, delay));
+    }
+
+    public long getMinIntervalMs() {
+        return minIntervalMs;
+    }
+    public void setMinIntervalMs(long minIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+    }
+    public long getMaxIntervalMs() {
+        return maxIntervalMs;
+    }
+    public void setMaxIntervalMs(long maxIntervalMs) {
+        this.maxIntervalMs = maxIntervalMs;
+    }
+    public long getInitialIntervalMs() {
+        return initialIntervalMs;
+    }
+    /**
+     * @param initialIntervalMs delay used while nothing is known about a job's pace yet
+     */
+    public void setInitialIntervalMs(long initialIntervalMs) {
+        this.initialIntervalMs = initialIntervalMs;
+    }
+    public double getJitter() {
+        return jitter;
+    }
+    /**
+     * @param jitter max random deviation from the computed delay, as a fraction of it (0 to disable)
+     */
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+    public long getErrorBackoffMs() {
+        return errorBackoffMs;
+    }
+    /**
+     * @param errorBackoffMs delay after the first failed status check, doubled after every further failure
+     */
+    public void setErrorBackoffMs(long errorBackoffMs) {
+        this.errorBackoffMs = errorBackoffMs;
+    }
+    public int getMaxConsecutiveErrors() {
+        return maxConsecutiveErrors;
+    }
+    /**
+     * @param maxConsecutiveErrors a job is failed once this many status checks in a row have failed
+     */
+    public void setMaxConsecutiveErrors(int maxConsecutiveErrors) {
+        this.maxConsecutiveErrors = maxConsecutiveErrors;
+    }
+}
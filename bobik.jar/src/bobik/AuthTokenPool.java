@@ -0,0 +1,231 @@
+package bobik;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Spreads jobs across several Bobik accounts, so that one client can use the combined quota of all of them.
+ * <br><br>
+ * Every submission goes to the least loaded token, measured by its jobs in flight relative to {@link #getMaxJobsPerToken()}.
+ * A token that was answered with 429 (Too Many Requests) is passed over until the server's Retry-After delay,
+ * or {@link #getRateLimitCooldownMs()}, has passed. If no token has headroom left, the least loaded one is used anyway,
+ * leaving it to the client's RetryPolicy to wait for capacity.
+ * <br>
+ * Once a job has been submitted, all its status checks, result fetches and its abort use the token that created it.
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    BobikClient bobik = new BobikClient(null);
+    bobik.setAuthTokenPool(new AuthTokenPool(Arrays.asList("FIRST_AUTH_KEY", "SECOND_AUTH_KEY")));
+ * }
+ * </pre>
+ * @author Eugene Mirkin
+ */
+public class AuthTokenPool {
+
+    private final List<TokenState> tokens;
+    private volatile int maxJobsPerToken = Integer.MAX_VALUE;
+    private volatile long rateLimitCooldownMs = 5000;
+
+    /*
+     * Where the search for the least loaded token starts, so that equally loaded tokens take turns
+     */
+    private int next = 0;
+
+    /**
+     * @param tokens auth tokens of the accounts to use
+     */
+    public AuthTokenPool(Collection<String> tokens) {
+        if (tokens.isEmpty())
+            throw new IllegalArgumentException("AuthTokenPool needs at least one token");
+        this.tokens = new ArrayList<TokenState>(tokens.size());
+        for (String token : tokens)
+            this.tokens.add(new TokenState(token));
+    }
+
+    /**
+     * Picks the token for a new job and counts the job against it. Must be followed by {@link #release(String)}
+     * once the job is over, or its submission has failed.
+     * @return token to submit the job with
+     */
+    synchronized String acquire() {
+        long now = System.currentTimeMillis();
+        TokenState best = null;
+        for (int i=0; i<tokens.size(); i++) {
+            TokenState candidate = tokens.get((next + i) % tokens.size());
+            if (best == null || candidate.isBetterThan(best, now, maxJobsPerToken))
+                best = candidate;
+        }
+        next = (next + 1) % tokens.size();
+        best.inFlight++;
+        best.submitted++;
+        return best.token;
+    }
+
+    /**
+     * Gives back the capacity a job took from its token
+     * @param token
+     */
+    synchronized void release(String token) {
+        TokenState state = find(token);
+        if (state != null && state.inFlight > 0)
+            state.inFlight--;
+    }
+
+    /**
+     * Records that Bobik turned away a call made with the token because of its rate limit
+     * @param token
+     * @param retryAfterMs delay requested by the server, or -1 if it didn't ask for one
+     */
+    synchronized void rateLimited(String token, long retryAfterMs) {
+        TokenState state = find(token);
+        if (state == null)
+            return;
+        state.rateLimited++;
+        state.throttledUntil = Math.max(state.throttledUntil,
+                System.currentTimeMillis() + (retryAfterMs >= 0 ? retryAfterMs : rateLimitCooldownMs));
+    }
+
+    /**
+     * @param token_id as returned by {@link #getTokenId(String)}
+     * @return the pool's token with the given id, or null if there's none
+     */
+    synchronized String findById(String token_id) {
+        for (TokenState state : tokens) {
+            if (state.id.equals(token_id))
+                return state.token;
+        }
+        return null;
+    }
+
+    private TokenState find(String token) {
+        for (TokenState state : tokens) {
+            if (state.token.equals(token))
+                return state;
+        }
+        return null;
+    }
+
+    /**
+     * @param token
+     * @return a stable identifier of the token that doesn't reveal it, for places where the token itself mustn't be written
+     */
+    static String getTokenId(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(token.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (int i=0; i<6; i++)
+                sb.append(String.format("%02x", digest[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the pool's tokens, in the order they were given
+     */
+    public synchronized List<String> getTokens() {
+        List<String> all = new ArrayList<String>(tokens.size());
+        for (TokenState state : tokens)
+            all.add(state.token);
+        return Collections.unmodifiableList(all);
+    }
+    /**
+     * @param token
+     * @return number of jobs submitted with the token that haven't finished yet
+     */
+    public synchronized int getJobsInFlight(String token) {
+        TokenState state = find(token);
+        return state == null ? 0 : state.inFlight;
+    }
+    /**
+     * @param token
+     * @return number of jobs submitted with the token so far
+     */
+    public synchronized long getJobsSubmitted(String token) {
+        TokenState state = find(token);
+        return state == null ? 0 : state.submitted;
+    }
+    /**
+     * @param token
+     * @return number of calls made with the token that were turned away with 429
+     */
+    public synchronized long getRateLimited(String token) {
+        TokenState state = find(token);
+        return state == null ? 0 : state.rateLimited;
+    }
+    public int getMaxJobsPerToken() {
+        return maxJobsPerToken;
+    }
+    /**
+     * @param maxJobsPerToken number of jobs a token can have in flight before it's considered to be out of headroom.
+     * Set it to the concurrency quota of your accounts.
+     */
+    public void setMaxJobsPerToken(int maxJobsPerToken) {
+        this.maxJobsPerToken = Math.max(1, maxJobsPerToken);
+    }
+    public long getRateLimitCooldownMs() {
+        return rateLimitCooldownMs;
+    }
+    /**
+     * @param rateLimitCooldownMs how long a rate-limited token is passed over if the server didn't say how long to wait
+     */
+    public void setRateLimitCooldownMs(long rateLimitCooldownMs) {
+        this.rateLimitCooldownMs = rateLimitCooldownMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (TokenState state : tokens) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(state.id).append(": ").append(state.inFlight).append(" in flight, ")
+                    .append(state.submitted).append(" submitted, ").append(state.rateLimited).append(" rate limited");
+        }
+        return sb.toString();
+    }
+
+
+    private static class TokenState {
+        final String token;
+        final String id;
+        int inFlight = 0;
+        long submitted = 0;
+        long rateLimited = 0;
+        long throttledUntil = 0;
+
+        TokenState(String token) {
+            this.token = token;
+            this.id = getTokenId(token);
+        }
+
+        boolean hasHeadroom(long now, int maxJobs) {
+            return now >= throttledUntil && inFlight < maxJobs;
+        }
+
+        /**
+         * Tokens with headroom come first, then the least loaded, then the one whose throttling ends soonest
+         */
+        boolean isBetterThan(TokenState other, long now, int maxJobs) {
+            boolean headroom = hasHeadroom(now, maxJobs);
+            if (headroom != other.hasHeadroom(now, maxJobs))
+                return headroom;
+            boolean throttled = now < throttledUntil;
+            if (throttled != now < other.throttledUntil)
+                return !throttled;
+            if (inFlight != other.inFlight)
+                return inFlight < other.inFlight;
+            return throttled && throttledUntil < other.throttledUntil;
+        }
+    }
+}
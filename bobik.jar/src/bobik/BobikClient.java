@@ -1,6 +1,25 @@
 package bobik;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -21,6 +40,7 @@ import org.apache.http.params.HttpParams;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Provides programmatic interface to Bobik API.
@@ -58,39 +78,313 @@ import java.util.concurrent.*;
     // Block to prevent the thread from exiting along with the unfinished scraping job.
     // Not needed if the thread will remain active regardless.
     job.waitForCompletion();
+
+    // Release pooled connections and worker threads once the client is no longer needed
+    bobik.close();
  * }
  * </pre>
  * @author Eugene Mirkin
  * @author Ashwath Murthy
  */
-public class BobikClient {
+public class BobikClient implements Closeable {
 
     /*
      * The Bobik Auth Token
      */
     private String authToken;
 
+    /*
+     * Endpoint for job submissions and status checks
+     */
+    private String apiUrl = BobikConstants.BOBIK_URL;
+
+    /*
+     * Jobs are aborted at abortUrl/JOB_ID/abort
+     */
+    private String abortUrl = BobikConstants.BOBIK_ABORT_URL;
+
     /*
      * Query timeout in milliseconds
      */
     private int timeoutMs = 30000;
 
     /*
-     * Max number of concurrent Bobik jobs
+     * Size of the default I/O pool
+     */
+    private final int numThreads;
+
+    /*
+     * Executes blocking HTTP calls made while monitoring jobs
+     */
+    private final Executor runners;
+
+    /*
+     * Queues work for runners by priority, so that urgent jobs don't wait behind bulk ones
+     */
+    private final PriorityExecutor io;
+
+    /*
+     * Delivers JobListener callbacks and completion handlers, off the threads making HTTP calls.
+     * ownsDispatchExecutor tells whether it was created by this client, and is to be shut down along with it.
+     */
+    private volatile Executor dispatchExecutor;
+    private boolean ownsDispatchExecutor;
+
+    /*
+     * Whether runners were created by this client, and are to be shut down along with it
+     */
+    private final boolean ownsRunners;
+
+    /*
+     * Bounds the number of HTTP requests in flight, counting from the moment a request is sent until
+     * its response body is closed. Null means only the connection pool bounds them.
+     */
+    private volatile Semaphore requestPermits = null;
+    private volatile int maxConcurrentRequests = 0;
+
+    /*
+     * Schedules status checks for all jobs in flight. Also evicts idle pooled connections.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /*
+     * Keeps track of the progress of all jobs started by this client
+     */
+    private final JobMonitor monitor;
+
+    /*
+     * Max number of pooled HTTP connections across all hosts
+     */
+    private int maxConnectionsTotal = 20;
+
+    /*
+     * Max number of pooled HTTP connections to a single host
+     */
+    private int maxConnectionsPerRoute = 10;
+
+    /*
+     * Pooled connections left idle for longer than this are closed
+     */
+    private long idleConnectionTimeoutMs = 60000;
+
+    /*
+     * How long to keep a connection alive when the server doesn't specify it
+     */
+    private long keepAliveMs = 30000;
+
+    /*
+     * Long-lived HTTP client shared by all calls. Created on first use.
+     */
+    private DefaultHttpClient httpClient;
+
+    /*
+     * Connection pool backing httpClient
+     */
+    private ThreadSafeClientConnManager connectionManager;
+
+    /**
+     * What scrape() does when job submissions are coming in faster than the submission rate limit allows
+     */
+    public enum Backpressure {
+        /** Wait for the rate limit to allow the submission (default) */
+        BLOCK,
+        /** Throw a BobikException right away */
+        FAIL_FAST,
+        /** Return a pending Job right away, and submit it in the background once the rate limit allows */
+        PENDING
+    }
+
+    /**
+     * How urgent a job is. More urgent jobs are submitted and checked on ahead of less urgent ones
+     * waiting for an I/O thread or a rate limit. Set it with {@link ScrapeRequest.Builder#setPriority(Priority)}.
+     */
+    public enum Priority {
+        /** Interactive lookups */
+        HIGH,
+        /** Default */
+        NORMAL,
+        /** Bulk work that can wait */
+        LOW
+    }
+
+    /*
+     * Client-side rate limits for job submissions, status checks and result fetches. Null means unlimited.
+     */
+    private volatile RateLimiter submitRateLimiter = null;
+    private volatile RateLimiter pollRateLimiter = null;
+    private volatile RateLimiter fetchRateLimiter = null;
+
+    private volatile Backpressure backpressure = Backpressure.BLOCK;
+
+    /*
+     * Jobs waiting to be submitted in PENDING mode, most urgent first
+     */
+    private final Queue<PendingSubmission> pendingSubmissions = new PriorityQueue<PendingSubmission>();
+    private long pendingSequence = 0;
+    private volatile int maxPendingSubmissions = 1000;
+    private boolean draining = false;
+
+    /*
+     * Decides which failed API calls are retried, and when
      */
-    private int numThreads = 10;
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
 
     /*
-     * Executes jobs in parallel
+     * Makes API calls fail fast while Bobik is degraded
      */
-    private final ExecutorService runners;
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /*
+     * Decides when running jobs are checked on next
+     */
+    private volatile PollStrategy pollStrategy = new AdaptivePollStrategy();
+
+    /*
+     * Used until a BobikMetrics is installed
+     */
+    private static final BobikMetrics NO_METRICS = new BobikMetrics() {};
+
+    /*
+     * Receives timings of HTTP calls and job lifecycle events
+     */
+    private volatile BobikMetrics metrics = NO_METRICS;
+
+    /*
+     * Whether to fetch results while jobs are still running (see JobListener.onPartialResults)
+     */
+    private volatile boolean incrementalResults = false;
+
+    /*
+     * Serves repeated scrapes of the same urls from memory. Null means no caching.
+     */
+    private volatile ResultCache resultCache = null;
+
+    /*
+     * Whether Bobik is asked to gzip responses
+     */
+    private volatile boolean compressResponses = true;
+
+    /*
+     * POST bodies of at least this many characters are sent gzipped. -1 disables request compression.
+     */
+    private volatile int requestCompressionThreshold = -1;
+
+    /*
+     * Whether identical requests made while a job for them is running share that job
+     */
+    private volatile boolean coalesceRequests = false;
+
+    /*
+     * Jobs that identical requests can attach to, keyed by canonical request. Guarded by itself.
+     */
+    private final Map<String, FanOutListener> requestsInFlight = new HashMap<String, FanOutListener>();
+    private long coalescedRequests = 0;
+
+    /*
+     * Records submitted jobs, so that they can be resumed after a restart. Null means no journal.
+     */
+    private volatile JobJournal jobJournal = null;
+
+    /*
+     * Keeps the results of every finished job on disk. Null means results are only held in memory.
+     */
+    private volatile ResultStore resultStore = null;
+
+    /*
+     * Spreads submissions across several accounts. Null to submit everything with authToken.
+     */
+    private volatile AuthTokenPool authTokenPool = null;
+
+    private boolean closed = false;
 
     /**
+     * Makes blocking calls on a pool of 10 threads
      * @param authToken
      */
     public BobikClient(String authToken) {
+        this(authToken, 10);
+    }
+
+    /**
+     * @param authToken
+     * @param numThreads size of the pool making blocking calls (status checks, result downloads)
+     */
+    public BobikClient(String authToken, int numThreads) {
+        this(authToken, Executors.newFixedThreadPool(numThreads, new DaemonThreadFactory("bobik-io")), true, numThreads);
+    }
+
+    /**
+     * Makes blocking calls on a caller-supplied executor, e.g. one running every task on a thread of its own.
+     * The executor is not shut down when this client is closed.
+     * With an executor that doesn't queue tasks, consider bounding concurrent requests with
+     * {@link #setMaxConcurrentRequests(int)}.
+     * @param authToken
+     * @param executor runs status checks and result downloads
+     */
+    public BobikClient(String authToken, Executor executor) {
+        this(authToken, executor, false, 0);
+    }
+
+    private BobikClient(String authToken, Executor executor, boolean ownsExecutor, int numThreads) {
         setAuthToken(authToken);
-        runners = Executors.newFixedThreadPool(this.numThreads);
+        this.numThreads = numThreads;
+        runners = executor;
+        ownsRunners = ownsExecutor;
+        // A pool's own queue is FIFO, so work is only handed to it once a thread is free to take it
+        int parallelism = numThreads > 0 ? numThreads
+                : executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getMaximumPoolSize() : Integer.MAX_VALUE;
+        io = new PriorityExecutor(executor, parallelism);
+        dispatchExecutor = Executors.newFixedThreadPool(numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors(),
+                new DaemonThreadFactory("bobik-dispatch"));
+        ownsDispatchExecutor = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("bobik-scheduler"));
+        monitor = new JobMonitor(this, scheduler, io);
+    }
+
+    /**
+     * Creates a client that makes every blocking call on a virtual thread of its own, so that tens of thousands
+     * of jobs can be monitored at once. Concurrent requests are bounded by {@link #getMaxConnectionsTotal()} instead
+     * of a pool size; change the bound with {@link #setMaxConcurrentRequests(int)}.
+     * Scheduling of status checks stays on a single platform thread, as it never blocks.
+     * @param authToken
+     * @return client owning a virtual-thread-per-task executor, shut down along with the client
+     * @throws UnsupportedOperationException if the runtime has no virtual threads (before Java 21, and on Android)
+     */
+    public static BobikClient withVirtualThreads(String authToken) {
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads are not available on this runtime", e);
+        }
+        BobikClient client = new BobikClient(authToken, executor, true, 0);
+        client.setMaxConcurrentRequests(client.getMaxConnectionsTotal());
+        // Tasks beyond the request bound would only wait for a permit, in FIFO order; let them wait by priority instead
+        client.io.setParallelism(client.getMaxConnectionsTotal());
+        client.setDispatchExecutor(executor);
+        return client;
+    }
+
+    /**
+     * Releases all pooled connections and stops worker threads.
+     * Jobs still in flight are not aborted on the server, but can no longer be monitored by this client.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        if (ownsRunners)
+            ((ExecutorService)runners).shutdown();
+        synchronized (this) {
+            // Callbacks already queued are still delivered
+            if (ownsDispatchExecutor)
+                ((ExecutorService)dispatchExecutor).shutdown();
+        }
+        scheduler.shutdownNow();
+        if (connectionManager != null)
+            connectionManager.shutdown();
     }
 
 
@@ -128,243 +422,1138 @@ public class BobikClient {
      * @throws InterruptedException not common, thrown if there's a client-level error during the scheduling of threads
      */
     public Job scrape(JSONObject request, final JobListener listener) throws BobikException, IOException, JSONException, ExecutionException, InterruptedException {
-        JSONObject job_submission = callAPI(request, "POST");
-        processErrors(job_submission, listener);
-        final long startTime = System.currentTimeMillis();
-        final String job_id = getJobIdOrFail(job_submission);
-        final Job job = new Job() {
-            private JSONObject scraped_data = null;
-            private Future<Object> job_waiter = null;
-            private int estimated_completion_time_ms = -1;
-            private boolean cancelled = false;
-
-            private JSONObject getStatusRequestObj(boolean download_results) throws BobikException, JSONException {
-                JSONObject progress_check = new JSONObject();
-                progress_check.accumulate(BobikConstants.JOB_TOKEN_LABEL, id());
-                progress_check.accumulate(BobikConstants.SKIP_DATA_TOKEN_LABEL, !download_results);
-                return progress_check;
-            }
-
-            @Override
-            public String id() {
-                return job_id;
-            }
+        return scrape(ScrapeRequest.fromJSONObject(request), listener);
+    }
 
-            @Override
-            public float getProgress() throws BobikException {
-                try {
-                    JSONObject status_check = callAPI(getStatusRequestObj(false), "GET");
-                    processErrors(status_check, listener);
-                    float progress = (float)status_check.getDouble(BobikConstants.PROGRESS_JSON_LABEL);
-                    estimated_completion_time_ms = status_check.getInt(BobikConstants.ESTIMATED_TIME_REMAINING_TOKEN_LABEL);
-                    listener.onProgress(progress);
-                    if (progress == 1.0)
-                        fetchScrapedData();
-                    return progress;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new BobikException(e);
-                }
-            }
+    /**
+     * Kicks off an asynchronous scraping job and returns a proxy object.
+     * The request's JSON is reused as is, so the same request can be submitted any number of times, from any thread.
+     * @param request The scraping request
+     * @param listener An object encapsulating various useful callbacks
+     * @return proxy to monitor/abort the scraping job
+     * @throws BobikException thrown on all Bobik-specific errors
+     * @throws IOException thrown on network problems
+     * @throws JSONException not common, thrown on surprise JSON parsing errors
+     * @throws ExecutionException not common, thrown if there's a client-level error during the scheduling of threads
+     * @throws InterruptedException not common, thrown if there's a client-level error during the scheduling of threads
+     */
+    public Job scrape(ScrapeRequest request, final JobListener listener) throws BobikException, IOException, JSONException, ExecutionException, InterruptedException {
+        if (coalesceRequests && !(listener instanceof StreamingJobListener))
+            return scrapeCoalesced(request, listener);
+        return scrapeUncoalesced(request, listener);
+    }
 
-            protected void fetchScrapedData() throws BobikException{
-                try {
-                    JSONObject job_data = callAPI(getStatusRequestObj(true), "GET");
-                    processErrors(job_data, listener);
-                    scraped_data = job_data.getJSONObject(BobikConstants.RESULTS_TOKEN_LABEL);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new BobikException(e);
-                }
-                listener.onSuccess(scraped_data);
-            }
 
-            @Override
-            public boolean cancel(boolean b) {
-                try {
-                    String url = "https://usebobik.com/jobs/" + id() + "/abort";
-                    doHttp(url, "GET", new JSONObject());
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                cancelled = true;
-                return true;
-            }
+    /**
+     * Serves a request from the cache if possible, and submits it otherwise
+     * @param request
+     * @param listener
+     * @return job
+     * @throws BobikException
+     * @throws IOException
+     * @throws JSONException
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    private Job scrapeUncoalesced(ScrapeRequest request, JobListener listener) throws BobikException, IOException, JSONException, ExecutionException, InterruptedException {
+        ResultCache cache = resultCache;
+        if (cache != null && !(listener instanceof StreamingJobListener) && !request.getUrls().isEmpty())
+            return scrapeCached(cache, request, listener);
+        return start(request, listener);
+    }
 
-            @Override
-            public boolean isCancelled() {
-                return cancelled;
-            }
 
-            @Override
-            public boolean isDone() {
-                try {
-                    return cancelled || scraped_data != null || getProgress() == 1.0;
-                } catch (BobikException e) {
-                    e.printStackTrace();
-                    return false;
+    /**
+     * Attaches the listener to a job already running for an identical request, if there is one.
+     * Otherwise, starts a job that later identical requests can attach to.
+     * @param request
+     * @param listener
+     * @return job shared by all identical requests made while it runs
+     * @throws BobikException
+     * @throws IOException
+     * @throws JSONException
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    private Job scrapeCoalesced(ScrapeRequest request, JobListener listener) throws BobikException, IOException, JSONException, ExecutionException, InterruptedException {
+        // Keys are written in sorted order, so identical requests have identical JSON.
+        // Requests only share a job if they'd also be scheduled alike.
+        final String key = request.getPriority() == Priority.NORMAL && request.getDeadlineMs() == 0 ? request.toJson()
+                : request.getPriority() + "/" + request.getDeadlineMs() + "/" + request.toJson();
+        FanOutListener created = null;
+        while (created == null) {
+            FanOutListener running;
+            synchronized (requestsInFlight) {
+                running = requestsInFlight.get(key);
+                if (running == null) {
+                    created = new FanOutListener(listener);
+                    requestsInFlight.put(key, created);
                 }
             }
-
-            @Override
-            public JSONObject get() throws InterruptedException, ExecutionException {
-                try {
-                    waitForCompletion();
-                } catch (Exception e) {
-                    throw new ExecutionException(e);
+            if (running != null) {
+                if (running.add(listener)) {
+                    synchronized (requestsInFlight) {
+                        coalescedRequests++;
+                    }
+                    return running.awaitJob();
+                }
+                // Its results are already out. Make way for a new job.
+                synchronized (requestsInFlight) {
+                    if (requestsInFlight.get(key) == running)
+                        requestsInFlight.remove(key);
                 }
-                return scraped_data;
-            }
-
-            @Override
-            public JSONObject get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
-                return get();
             }
-
-            private boolean checkTimer() throws  BobikException {
-                if (System.currentTimeMillis() - startTime > timeoutMs)
-                    throw new BobikException("Timing out after " + timeoutMs + "ms");
-                return true;
+        }
+        final FanOutListener fan_out = created;
+        Job job;
+        try {
+            job = scrapeUncoalesced(request, fan_out);
+        } catch (Exception e) {
+            synchronized (requestsInFlight) {
+                if (requestsInFlight.get(key) == fan_out)
+                    requestsInFlight.remove(key);
             }
-
+            fan_out.released(null, e);
+            if (e instanceof BobikException)
+                throw (BobikException)e;
+            if (e instanceof IOException)
+                throw (IOException)e;
+            if (e instanceof JSONException)
+                throw (JSONException)e;
+            if (e instanceof ExecutionException)
+                throw (ExecutionException)e;
+            if (e instanceof InterruptedException)
+                throw (InterruptedException)e;
+            throw (RuntimeException)e;
+        }
+        fan_out.released(job, null);
+        job.whenComplete(new JobCompletionHandler() {
             @Override
-            public void waitForCompletion() throws BobikException {
-                // If this is the first time, kick of a monitor
-                if (job_waiter == null) {
-                    job_waiter = runners.submit(new Callable<Object>() {
-                        @Override
-                        public Object call() throws Exception {
-                            while (checkTimer() && getProgress() != 1.0) {
-                                try {
-                                    Thread.sleep(estimated_completion_time_ms);
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                    new BobikException(e);
-                                }
-                            }
-                            return null;
-                        }
-                    });
-                }
-
-                // Now, block on the monitor
-                try {
-                    job_waiter.get();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    new BobikException(e);
+            public void onComplete(Job job, JSONObject scraped_data, Exception failure) {
+                synchronized (requestsInFlight) {
+                    if (requestsInFlight.get(key) == fan_out)
+                        requestsInFlight.remove(key);
                 }
+                fan_out.close();
             }
-
-        };
-
-        listener.init(job);
-        processErrors(job_submission, listener);
+        });
         return job;
     }
 
 
     /**
-     * Retrieves the job id from the submission object
-     * @param job_submission
-     * @return id
-     * @throws BobikException if job fails to start
+     * Creates a job and submits it, or queues it up for submission, depending on backpressure
+     * @param request
+     * @param listener
+     * @return job
+     * @throws BobikException
+     * @throws IOException
+     * @throws JSONException
+     * @throws ExecutionException
+     * @throws InterruptedException
      */
-    private String getJobIdOrFail(JSONObject job_submission) throws BobikException {
-        try {
-            return job_submission.getString(BobikConstants.JOB_TOKEN_LABEL);
-        } catch (JSONException e) {
-            throw new BobikException("Job failed to start.");
+    private Job start(ScrapeRequest request, JobListener listener) throws BobikException, IOException, JSONException, ExecutionException, InterruptedException {
+        boolean pending = false;
+        RateLimiter limiter = submitRateLimiter;
+        if (limiter != null && !limiter.hasPermit()) {
+            switch (backpressure) {
+                case FAIL_FAST:
+                    throw new BobikException("Job submission rate limit reached");
+                case PENDING:
+                    pending = true;
+                    break;
+                default:
+                    break;  // openAPI waits for a permit
+            }
         }
+        BobikJob job = new BobikJob(this, listener, request.getPriority(), request.getDeadlineMs());
+        listener.init(job);
+        if (pending)
+            enqueue(job, request);
+        else
+            submit(job, request);
+        return job;
     }
 
+
     /**
-     * Submits a JSON request and returns the response received from Bobik
+     * Serves the urls found in the result cache right away and only submits the rest.
+     * Cached and freshly scraped data are merged before they reach the listener.
+     * @param cache
      * @param request
-     * @param httpMethod
-     * @return response
-     * @throws IOException
+     * @param listener
+     * @return job. If all urls were cached, it is already complete and has no id.
      * @throws BobikException
+     * @throws IOException
      * @throws JSONException
      * @throws ExecutionException
      * @throws InterruptedException
      */
-    protected JSONObject callAPI(JSONObject request, final String httpMethod) throws IOException, BobikException, JSONException, ExecutionException, InterruptedException {
-        request.put(BobikConstants.AUTH_TOKEN_LABEL, authToken);
-        HttpResponse response = doHttp(BobikConstants.BOBIK_URL, httpMethod, request).get();
-        int responseCode = response.getStatusLine().getStatusCode();
-        String responseBody = BobikClient.convertStreamToString(response.getEntity().getContent());
-
-        switch (responseCode) {
-            case HttpStatus.SC_OK:
-            case HttpStatus.SC_ACCEPTED:
-            case HttpStatus.SC_CREATED:
-                JSONObject result = null;
-                try {
-                    result = new JSONObject(responseBody);
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
-                return result;
-            default:
-                throw new BobikException("Error - HTTP Response Code: " + responseCode + ", HTTP Response Body: " + responseBody);
+    private Job scrapeCached(ResultCache cache, ScrapeRequest request, JobListener listener) throws BobikException, IOException, JSONException, ExecutionException, InterruptedException {
+        String request_key = request.getRequestKey();
+        List<String> urls = request.getUrls();
+        JSONObject cached = new JSONObject();
+        List<String> missing = new ArrayList<String>();
+        for (String url : urls) {
+            Object data = cache.get(url, request_key);
+            if (data != null)
+                cached.put(url, data);
+            else
+                missing.add(url);
+        }
+        if (missing.isEmpty()) {
+            BobikJob job = new BobikJob(this, listener);
+            listener.init(job);
+            if (incrementalResults)
+                job.getListener().onPartialResults(cached);
+            job.completed(cached);
+            return job;
         }
+        return start(request.withUrls(missing), new CachingJobListener(listener, cache, request_key, cached, urls.size()));
     }
 
 
     /**
-     * Performs basic HTTP communication. Also unifies serialization of query parameters
-     * @param url base url
-     * @param httpMethod GET/POST
-     * @param data
-     * @return response
+     * Sends a job to Bobik and starts monitoring it.
+     * With a JobJournal installed, the job is journalled before it is sent, so that it isn't lost if the process
+     * stops before Bobik answers.
+     * @param job
+     * @param request
+     * @throws BobikException
      * @throws IOException
      * @throws JSONException
+     * @throws ExecutionException
+     * @throws InterruptedException
      */
-    private Future<HttpResponse> doHttp(final String url, final String httpMethod, final JSONObject data) throws IOException, JSONException {
-        return runners.submit(new Callable<HttpResponse>() {
-            @Override
-            public HttpResponse call() throws Exception {
-                HttpParams httpParams = new BasicHttpParams();
-                HttpConnectionParams.setConnectionTimeout(httpParams, timeoutMs);
-                HttpConnectionParams.setSoTimeout(httpParams, timeoutMs);
-                final HttpClient client = new DefaultHttpClient(httpParams);
-                HttpRequestBase httpRequest;
-                if (httpMethod.equalsIgnoreCase("POST")) {
-                    httpRequest = new HttpPost(url);
-                    try {
-                        //HttpEntity body = new UrlEncodedFormEntity(data.toString().getBytes("UTF8"));
-                        StringEntity body = new StringEntity(data.toString());
-                        body.setContentType("application/json");
-                        ((HttpPost)httpRequest).setEntity(body);
-                    } catch (UnsupportedEncodingException e) {
-                        return null;
-                    }
-                } else {
-                    List<NameValuePair> query_params = new LinkedList<NameValuePair>();
-                    for (Iterator<String> i=data.keys(); i.hasNext(); ) {
-                        String key = i.next();
-                        String value = data.get(key).toString();
-                        query_params.add(new BasicNameValuePair(key, value));
-                    }
-                    String query = URLEncodedUtils.format(query_params, "utf-8");
-                    httpRequest = new HttpGet(url + (url.endsWith("?")? "&" : "?") + query);
-                }
-                httpRequest.setHeader("Accept", "application/json");
-                return client.execute(httpRequest);
+    private void submit(BobikJob job, ScrapeRequest request) throws BobikException, IOException, JSONException, ExecutionException, InterruptedException {
+        JobListener listener = job.getListener();
+        JobJournal journal = jobJournal;
+        if (journal != null && job.getJournalKey() == null) {
+            try {
+                job.setJournalKey(journal.submitting(request.toJSONObject(), job.getPriority(), request.getDeadlineMs() > 0 ? job.getDeadline() : 0));
+            } catch (IOException e) {
+                e.printStackTrace();
+                metrics.onError("journal", e);
             }
-        });
-    }
-
-
-    private static String convertStreamToString(InputStream is) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        }
+        AuthTokenPool pool = authTokenPool;
+        // Held in an array so that a token turned away with 429 can be swapped for another one while retrying
+        String[] tokens = {pool == null ? authToken : pool.acquire()};
+        JSONObject job_submission;
+        String job_id;
+        try {
+            String json = request.toJson();
+            job_submission = parseResponse(openAPI("POST", withAuthToken(json, tokens[0]), json, submitRateLimiter, tokens, pool, job.getPriority()));
+            processErrors(job_submission, listener);
+            job_id = getJobIdOrFail(job_submission);
+        } catch (IOException e) {
+            submissionFailed(job, pool, tokens[0], journal);
+            metrics.onError("submit", e);
+            throw e;
+        } catch (BobikException e) {
+            submissionFailed(job, pool, tokens[0], journal);
+            metrics.onError("submit", e);
+            throw e;
+        } catch (JSONException e) {
+            submissionFailed(job, pool, tokens[0], journal);
+            throw e;
+        } catch (RuntimeException e) {
+            submissionFailed(job, pool, tokens[0], journal);
+            throw e;
+        }
+        String token = tokens[0];
+        final long startTime = System.currentTimeMillis();
+        job.submitted(job_id, startTime, token, pool);
+        if (journal != null && job.getJournalKey() != null) {
+            try {
+                journal.submitted(job.getJournalKey(), job_id, pool == null ? null : AuthTokenPool.getTokenId(token));
+            } catch (IOException e) {
+                e.printStackTrace();
+                metrics.onError("journal", e);
+            }
+        }
+        monitor.monitor(job);
+    }
+
+    /**
+     * Gives back what a job took for a submission that didn't go through
+     * @param job
+     * @param pool
+     * @param token
+     * @param journal
+     */
+    private void submissionFailed(BobikJob job, AuthTokenPool pool, String token, JobJournal journal) {
+        if (pool != null)
+            pool.release(token);
+        if (journal != null && job.getJournalKey() != null) {
+            try {
+                journal.abandoned(job.getJournalKey());
+            } catch (Exception e) {
+                e.printStackTrace();
+                metrics.onError("journal", e);
+            }
+        }
+    }
+
+
+    /**
+     * Queues up a job to be submitted once the submission rate limit allows it.
+     * Its id is null until it is submitted.
+     * @param job
+     * @param request
+     * @throws BobikException if the submission queue is full
+     */
+    private void enqueue(BobikJob job, ScrapeRequest request) throws BobikException {
+        boolean startDrain;
+        synchronized (pendingSubmissions) {
+            if (pendingSubmissions.size() >= maxPendingSubmissions)
+                throw new BobikException("Job submission queue is full (" + maxPendingSubmissions + " jobs)");
+            pendingSubmissions.add(new PendingSubmission(job, request, pendingSequence++));
+            startDrain = !draining;
+            draining = true;
+        }
+        if (startDrain) {
+            try {
+                io.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainPendingSubmissions();
+                    }
+                }, job.getPriority());
+            } catch (RejectedExecutionException e) {
+                synchronized (pendingSubmissions) {
+                    draining = false;
+                }
+                throw e;
+            }
+        }
+    }
+
+
+    /**
+     * Submits queued jobs one at a time, most urgent first, at the pace allowed by the submission rate limit.
+     * Jobs that are past their deadline by the time their turn comes are failed without being submitted.
+     */
+    private void drainPendingSubmissions() {
+        while (true) {
+            PendingSubmission pending;
+            synchronized (pendingSubmissions) {
+                pending = pendingSubmissions.poll();
+                if (pending == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            BobikJob job = pending.job;
+            if (job.isCancelled() || job.checkDeadline())
+                continue;
+            try {
+                submit(job, pending.request);
+            } catch (Exception e) {
+                e.printStackTrace();
+                job.fail(e);
+            }
+        }
+    }
+
+
+    /**
+     * Kicks off an asynchronous scraping job that is consumed through {@link Job#whenComplete(JobCompletionHandler)}
+     * rather than a JobListener. No thread is held while the job runs, so results can be
+     * passed on to further processing (e.g. {@link BobikHelper#transpose(JSONObject)}) as soon as they arrive.
+     * Use {@link Job#get(long, TimeUnit)} to wait for the results instead.
+     * @param request The scraping request, built in accordance with http://usebobik.com/api/docs#func_ref
+     * @return proxy to monitor/abort the scraping job
+     * @throws BobikException thrown on all Bobik-specific errors
+     * @throws IOException thrown on network problems
+     * @throws JSONException not common, thrown on surprise JSON parsing errors
+     * @throws ExecutionException not common, thrown if there's a client-level error during the scheduling of threads
+     * @throws InterruptedException not common, thrown if there's a client-level error during the scheduling of threads
+     */
+    public Job scrapeAsync(JSONObject request) throws BobikException, IOException, JSONException, ExecutionException, InterruptedException {
+        return scrapeAsync(ScrapeRequest.fromJSONObject(request));
+    }
+
+    /**
+     * Same as {@link #scrapeAsync(JSONObject)}, for a request whose JSON is reused as is
+     * @param request The scraping request
+     * @return proxy to monitor/abort the scraping job
+     * @throws BobikException thrown on all Bobik-specific errors
+     * @throws IOException thrown on network problems
+     * @throws JSONException not common, thrown on surprise JSON parsing errors
+     * @throws ExecutionException not common, thrown if there's a client-level error during the scheduling of threads
+     * @throws InterruptedException not common, thrown if there's a client-level error during the scheduling of threads
+     */
+    public Job scrapeAsync(ScrapeRequest request) throws BobikException, IOException, JSONException, ExecutionException, InterruptedException {
+        return scrape(request, new JobListener() {
+            public void onSuccess(JSONObject scraped_data) {
+            }
+
+            public void onProgress(float currentProgress) {
+            }
+
+            public void onErrors(Collection<String> errors) {
+            }
+        });
+    }
+
+
+    /**
+     * Scrapes a list of urls too long for a single job. The urls are split into shards of
+     * {@link BulkScrapeOptions#getShardSize()} urls, which run as separate jobs, several at a time.
+     * See {@link BulkJob} for how shard callbacks are combined.
+     * <br>
+     * Shards are submitted with {@link #scrape(JSONObject, JobListener)}, so they are subject to the same
+     * rate limits and backpressure as any other job.
+     * @param urls
+     * @param queries applied to every url
+     * @param options shard size, parallelism, retries and extra request fields. Defaults are used if null.
+     * @param listener receives the combined progress, errors and results of all shards
+     * @return proxy to monitor/abort all shards at once
+     */
+    public BulkJob scrapeBulk(List<String> urls, Collection<String> queries, BulkScrapeOptions options, JobListener listener) {
+        BulkJob job = new BulkJob(this, urls, queries, options == null ? new BulkScrapeOptions() : options, listener);
+        listener.init(job);
+        job.start();
+        return job;
+    }
+
+
+    /**
+     * Scrapes a set of requests as a stream of records that runs at its subscriber's pace, with up to 4 jobs in flight.
+     * See {@link ResultPublisher}.
+     * @param requests scraping requests, built in accordance with http://usebobik.com/api/docs#func_ref
+     * @return a publisher to subscribe to. Nothing is submitted until its subscriber requests records.
+     */
+    public ResultPublisher publish(List<JSONObject> requests) {
+        return publish(requests, 4);
+    }
+
+    /**
+     * Scrapes a set of requests as a stream of records that runs at its subscriber's pace.
+     * Jobs are submitted with {@link #scrapeAsync(JSONObject)}, so they are subject to the same
+     * rate limits, backpressure and result cache as any other job.
+     * @param requests scraping requests, built in accordance with http://usebobik.com/api/docs#func_ref
+     * @param maxJobsInFlight max number of jobs running at once, however many records are requested
+     * @return a publisher to subscribe to. Nothing is submitted until its subscriber requests records.
+     */
+    public ResultPublisher publish(List<JSONObject> requests, int maxJobsInFlight) {
+        return new ResultPublisher(this, requests, maxJobsInFlight);
+    }
+
+
+    /**
+     * Picks up monitoring of all jobs the journal lists as unfinished, e.g. after a restart
+     * (see {@link #resume(ResumeListenerFactory)}). Consume their results through {@link Job#whenComplete(JobCompletionHandler)}.
+     * @return a handle for every resumed job
+     * @throws BobikException if no journal is installed
+     */
+    public List<Job> resume() throws BobikException {
+        return resume(new ResumeListenerFactory() {
+            @Override
+            public JobListener listenerFor(JobJournal.Entry entry) {
+                return new JobListener() {
+                    public void onSuccess(JSONObject scraped_data) {
+                    }
+
+                    public void onProgress(float currentProgress) {
+                    }
+
+                    public void onErrors(Collection<String> errors) {
+                    }
+                };
+            }
+        });
+    }
+
+
+    /**
+     * Picks up monitoring of all jobs the journal lists as unfinished, reattaching a listener to each of them.
+     * Jobs keep the priority and deadline they were submitted with.
+     * Jobs that made it to Bobik are not submitted again. Those whose submission was cut short before Bobik's answer
+     * was journalled are submitted again, unless they are past their deadline.
+     * <br>
+     * Calling this more than once is harmless: jobs this client is already monitoring or submitting are not picked up again.
+     * Those being monitored are returned as they are, without asking for a new listener.
+     * @param listeners provides the listener of every resumed job
+     * @return a handle for every resumed job
+     * @throws BobikException if no journal is installed
+     */
+    public List<Job> resume(ResumeListenerFactory listeners) throws BobikException {
+        JobJournal journal = jobJournal;
+        if (journal == null)
+            throw new BobikException("No job journal to resume from");
+        AuthTokenPool pool = authTokenPool;
+        List<Job> jobs = new ArrayList<Job>();
+        for (JobJournal.Entry entry : journal.getUnfinishedJobs()) {
+            long now = System.currentTimeMillis();
+            if (entry.getJobId() == null) {
+                if (entry.getDeadline() > 0 && now > entry.getDeadline()) {
+                    try {
+                        journal.abandoned(entry.getKey());
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        metrics.onError("journal", e);
+                    }
+                } else if (journal.resubmitting(entry.getKey())) {
+                    jobs.add(resubmit(entry, listeners.listenerFor(entry)));
+                }
+                continue;
+            }
+            BobikJob monitored = monitor.getMonitoredJob(entry.getJobId());
+            if (monitored != null) {
+                jobs.add(monitored);
+                continue;
+            }
+            JobListener listener = listeners.listenerFor(entry);
+            BobikJob job = new BobikJob(this, listener, entry.getPriority(), getRemainingMs(entry, now));
+            listener.init(job);
+            // Keep using the token the job was submitted with, as long as it's still in the pool
+            String token = pool == null || entry.getTokenId() == null ? null : pool.findById(entry.getTokenId());
+            // waitForCompletion's timeout counts from the time monitoring resumes, not from the original submission
+            job.submitted(entry.getJobId(), now, token == null ? getDefaultToken() : token, null);
+            jobs.add(monitor.monitor(job));
+        }
+        return jobs;
+    }
+
+    /**
+     * @param entry
+     * @param now
+     * @return time left until the entry's deadline, at least 1ms so that a job past it is aborted, or 0 if it has no deadline
+     */
+    private static long getRemainingMs(JobJournal.Entry entry, long now) {
+        return entry.getDeadline() > 0 ? Math.max(1, entry.getDeadline() - now) : 0;
+    }
+
+    /**
+     * Submits a journalled job again, in the background, under its existing journal entry
+     * @param entry
+     * @param listener
+     * @return job
+     */
+    private Job resubmit(JobJournal.Entry entry, JobListener listener) {
+        final BobikJob job = new BobikJob(this, listener, entry.getPriority(), getRemainingMs(entry, System.currentTimeMillis()));
+        listener.init(job);
+        job.setJournalKey(entry.getKey());
+        try {
+            final ScrapeRequest request = ScrapeRequest.fromJSONObject(entry.getRequest());
+            io.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (job.isCancelled() || job.checkDeadline()) {
+                        submissionFailed(job, null, null, jobJournal);
+                        return;
+                    }
+                    try {
+                        submit(job, request);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        job.fail(e);
+                    }
+                }
+            }, job.getPriority());
+        } catch (Exception e) {
+            submissionFailed(job, null, null, jobJournal);
+            job.fail(e);
+        }
+        return job;
+    }
+
+
+    /**
+     * Provides listeners for jobs picked up by {@link BobikClient#resume(ResumeListenerFactory)}
+     */
+    public interface ResumeListenerFactory {
+        /**
+         * @param entry the job's journal entry, including its original request and last known progress
+         * @return listener for the job
+         */
+        JobListener listenerFor(JobJournal.Entry entry);
+    }
+
+
+    /**
+     * Checks on several jobs with a single request.
+     * Bobik responds with a list of status objects, each shaped like a single-job status check
+     * (no results) and labelled with its job id.
+     * @param job_ids
+     * @return status of each job, keyed by job id. Jobs Bobik didn't report on are left out.
+     * @throws IOException
+     * @throws BobikException
+     * @throws JSONException
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    Map<String, JSONObject> getStatuses(Collection<String> job_ids) throws IOException, BobikException, JSONException, ExecutionException, InterruptedException {
+        return getStatuses(job_ids, getDefaultToken());
+    }
+
+    /**
+     * Checks on several jobs submitted with the same token at once
+     * @param job_ids
+     * @param token
+     * @return statuses by job id
+     * @throws IOException
+     * @throws BobikException
+     * @throws JSONException
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    Map<String, JSONObject> getStatuses(Collection<String> job_ids, String token) throws IOException, BobikException, JSONException, ExecutionException, InterruptedException {
+        StringBuilder ids = new StringBuilder();
+        for (String job_id : job_ids) {
+            if (ids.length() > 0)
+                ids.append(',');
+            ids.append(job_id);
+        }
+        JSONObject status_check = new JSONObject();
+        status_check.put(BobikConstants.JOBS_TOKEN_LABEL, ids.toString());
+        status_check.put(BobikConstants.SKIP_DATA_TOKEN_LABEL, true);
+        JSONArray statuses = callAPI(status_check, "GET", token).getJSONArray(BobikConstants.JOBS_TOKEN_LABEL);
+        Map<String, JSONObject> statuses_by_id = new HashMap<String, JSONObject>(statuses.length() * 2);
+        for (int i=0; i<statuses.length(); i++) {
+            JSONObject status = statuses.getJSONObject(i);
+            statuses_by_id.put(status.getString(BobikConstants.JOB_TOKEN_LABEL), status);
+        }
+        return statuses_by_id;
+    }
+
+
+    /**
+     * Downloads the results of a finished job. They are parsed as they arrive, straight into a ScrapeResult,
+     * without building a JSONObject tree first.
+     * @param job_id
+     * @return results of the job, or whatever part of them is ready if the job is still running
+     * @throws IOException thrown on network problems
+     * @throws BobikException thrown on all Bobik-specific errors
+     * @throws JSONException if the response is malformed
+     */
+    public ScrapeResult fetchResult(String job_id) throws IOException, BobikException, JSONException {
+        return fetchResult(job_id, getDefaultToken());
+    }
+
+    /**
+     * Same as {@link #fetchResult(String)}, using the token the job was submitted with
+     * @param job
+     * @return results of the job, or whatever part of them is ready if the job is still running
+     * @throws IOException thrown on network problems
+     * @throws BobikException thrown on all Bobik-specific errors
+     * @throws JSONException if the response is malformed
+     */
+    public ScrapeResult fetchResult(Job job) throws IOException, BobikException, JSONException {
+        if (job.id() == null)
+            throw new BobikException("Job has not been submitted");
+        return fetchResult(job.id(), job instanceof BobikJob ? ((BobikJob)job).getAuthToken() : getDefaultToken());
+    }
+
+    private ScrapeResult fetchResult(String job_id, String token) throws IOException, BobikException, JSONException {
+        JSONObject results_check = new JSONObject();
+        results_check.put(BobikConstants.JOB_TOKEN_LABEL, job_id);
+        results_check.put(BobikConstants.SKIP_DATA_TOKEN_LABEL, false);
+        return ScrapeResult.read(job_id, new InputStreamReader(openAPI(results_check, "GET", token), "UTF-8"));
+    }
+
+
+    /**
+     * Retrieves the job id from the submission object
+     * @param job_submission
+     * @return id
+     * @throws BobikException if job fails to start
+     */
+    private String getJobIdOrFail(JSONObject job_submission) throws BobikException {
+        try {
+            return job_submission.getString(BobikConstants.JOB_TOKEN_LABEL);
+        } catch (JSONException e) {
+            throw new BobikException("Job failed to start.");
+        }
+    }
+
+    /**
+     * Submits a JSON request and returns the response received from Bobik
+     * @param request
+     * @param httpMethod
+     * @return response
+     * @throws IOException
+     * @throws BobikException
+     * @throws JSONException
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    protected JSONObject callAPI(JSONObject request, final String httpMethod) throws IOException, BobikException, JSONException, ExecutionException, InterruptedException {
+        return callAPI(request, httpMethod, getDefaultToken());
+    }
+
+    /**
+     * Same as {@link #callAPI(JSONObject, String)}, on behalf of a particular account
+     * @param request
+     * @param httpMethod
+     * @param token auth token to send
+     * @return response
+     * @throws IOException
+     * @throws BobikException
+     * @throws JSONException
+     */
+    JSONObject callAPI(JSONObject request, final String httpMethod, String token) throws IOException, BobikException, JSONException {
+        return parseResponse(openAPI(request, httpMethod, token));
+    }
+
+    private static JSONObject parseResponse(InputStream body) throws IOException {
+        String responseBody = BobikClient.convertStreamToString(body);
+        JSONObject result = null;
+        try {
+            result = new JSONObject(responseBody);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+
+    /**
+     * Submits a JSON request and returns the body of a successful response as a stream, for incremental parsing.
+     * Closing the stream returns the underlying connection to the pool.
+     * Failed calls are retried according to the client's RetryPolicy, unless its CircuitBreaker is open.
+     * The request is left untouched; the auth token is only added to what is sent.
+     * @param request
+     * @param httpMethod
+     * @return UTF-8 encoded response body
+     * @throws IOException
+     * @throws BobikException if Bobik responds with an error
+     * @throws JSONException
+     */
+    protected InputStream openAPI(JSONObject request, final String httpMethod) throws IOException, BobikException, JSONException {
+        return openAPI(request, httpMethod, getDefaultToken());
+    }
+
+    /**
+     * Same as {@link #openAPI(JSONObject, String)}, on behalf of a particular account
+     * @param request
+     * @param httpMethod
+     * @param token auth token to send
+     * @return UTF-8 encoded response body
+     * @throws IOException
+     * @throws BobikException if Bobik responds with an error
+     * @throws JSONException
+     */
+    InputStream openAPI(JSONObject request, final String httpMethod, String token) throws IOException, BobikException, JSONException {
+        if (request.has(BobikConstants.AUTH_TOKEN_LABEL)) {
+            JSONObject without_token = new JSONObject();
+            for (Iterator<?> i=request.keys(); i.hasNext(); ) {
+                String key = (String)i.next();
+                if (!key.equals(BobikConstants.AUTH_TOKEN_LABEL))
+                    without_token.put(key, request.get(key));
+            }
+            request = without_token;
+        }
+        String payload;
+        if (httpMethod.equalsIgnoreCase("POST")) {
+            payload = withAuthToken(request.toString(), token);
+        } else {
+            payload = withAuthTokenParam(buildQueryString(request), token);
+        }
+        return openAPI(httpMethod, payload, getRateLimiter(request, httpMethod), token, PriorityExecutor.currentPriority());
+    }
+
+
+    /**
+     * Adds an auth token to a JSON request body, without parsing it again
+     * @param json
+     * @param token
+     * @return JSON text of the request, plus the auth token
+     */
+    private static String withAuthToken(String json, String token) {
+        if (token == null)
+            return json;
+        String field = JSONObject.quote(BobikConstants.AUTH_TOKEN_LABEL) + ':' + JSONObject.quote(token);
+        return json.equals("{}") ? '{' + field + '}' : '{' + field + ',' + json.substring(1);
+    }
+
+    /**
+     * Adds an auth token to a query string
+     * @param query
+     * @param token
+     * @return url-encoded query string, plus the auth token
+     */
+    private static String withAuthTokenParam(String query, String token) {
+        if (token == null)
+            return query;
+        return (query.length() > 0 ? query + "&" : "") + URLEncodedUtils.format(
+                Collections.<NameValuePair>singletonList(new BasicNameValuePair(BobikConstants.AUTH_TOKEN_LABEL, token)), "utf-8");
+    }
+
+
+    /**
+     * Sends an API call, retrying it as needed.
+     * While the JobMonitor is checking on jobs, a retry is not waited for in place: a RetryLaterException tells the monitor
+     * to schedule the next check after the backoff, so the I/O thread is free for other jobs in the meantime.
+     * @param httpMethod
+     * @param payload JSON body of a POST, or query string of a GET, auth token included
+     * @param limiter rate limit to wait for before every attempt, or null
+     * @param token auth token included in the payload, whose pool is told about rate-limit responses
+     * @param priority of the job the call is made for, when waiting for the rate limit
+     * @return UTF-8 encoded response body
+     * @throws IOException
+     * @throws BobikException if Bobik responds with an error
+     */
+    private InputStream openAPI(final String httpMethod, String payload, RateLimiter limiter, String token, Priority priority) throws IOException, BobikException {
+        return openAPI(httpMethod, payload, null, limiter, new String[]{token}, null, priority);
+    }
+
+    /**
+     * Same as {@link #openAPI(String, String, RateLimiter, String, Priority)}, for a submission whose token can be swapped:
+     * if the token is rate limited, the call is retried right away with whichever token the pool picks next,
+     * and the first one is released.
+     * @param httpMethod
+     * @param payload
+     * @param json payload without the auth token, to sign again with another token
+     * @param limiter
+     * @param tokens holds the token included in the payload, and is updated with the one the call ends up using
+     * @param pool that the token was acquired from, or null if it can't be swapped
+     * @param priority
+     * @return UTF-8 encoded response body
+     * @throws IOException
+     * @throws BobikException if Bobik responds with an error
+     */
+    private InputStream openAPI(final String httpMethod, String payload, String json, RateLimiter limiter, String[] tokens, AuthTokenPool pool, Priority priority) throws IOException, BobikException {
+        for (int attempt=1; ; attempt++) {
+            if (limiter != null) {
+                try {
+                    limiter.acquire(priority);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BobikException("Interrupted while waiting for the rate limit", e);
+                }
+            }
+            circuitBreaker.acquire();
+            InputStream body = null;
+            Exception failure = null;
+            boolean tokenThrottled = false;
+            try {
+                body = sendAPI(payload, httpMethod);
+            } catch (IOException e) {
+                failure = e;
+            } catch (BobikHttpException e) {
+                failure = e;
+                AuthTokenPool tokenPool = pool != null ? pool : authTokenPool;
+                if (tokenPool != null && e.getStatusCode() == 429) {
+                    // Only this token is over its quota, which says nothing about the API as a whole
+                    tokenThrottled = true;
+                    tokenPool.rateLimited(tokens[0], e.getRetryAfterMs());
+                }
+            } finally {
+                // Settled whatever happened, or a half-open circuit would wait for its trial call forever
+                if (body == null && !tokenThrottled
+                        && (failure == null || failure instanceof IOException || ((BobikHttpException)failure).isServerFailure()))
+                    circuitBreaker.recordFailure();
+                else
+                    circuitBreaker.recordSuccess();
+            }
+            if (body != null) {
+                retryPolicy.recordSuccess(attempt);
+                return body;
+            }
+            long backoffMs = retryPolicy.backoffMs(httpMethod, attempt, failure);
+            if (backoffMs < 0) {
+                if (failure instanceof IOException)
+                    throw (IOException)failure;
+                throw (BobikHttpException)failure;
+            }
+            if (tokenThrottled && pool != null) {
+                String throttled = tokens[0];
+                tokens[0] = pool.acquire();
+                pool.release(throttled);
+                if (!tokens[0].equals(throttled)) {
+                    payload = withAuthToken(json, tokens[0]);
+                    continue;
+                }
+            }
+            if (JobMonitor.isCheckingOnJobs())
+                throw new RetryLaterException(backoffMs, failure);
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BobikException("Interrupted while waiting to retry", e);
+            }
+        }
+    }
+
+
+    /**
+     * @param request
+     * @param httpMethod
+     * @return the rate limit that applies to an API call, or null if there is none
+     */
+    private RateLimiter getRateLimiter(JSONObject request, String httpMethod) {
+        if (httpMethod.equalsIgnoreCase("POST"))
+            return submitRateLimiter;
+        return request.optBoolean(BobikConstants.SKIP_DATA_TOKEN_LABEL, false) ? pollRateLimiter : fetchRateLimiter;
+    }
+
+
+    /**
+     * Makes a single attempt at an API call
+     * @param payload JSON body of a POST, or query string of a GET
+     * @param httpMethod
+     * @return UTF-8 encoded response body
+     * @throws IOException
+     * @throws BobikHttpException if Bobik responds with an error
+     */
+    private InputStream sendAPI(String payload, final String httpMethod) throws IOException, BobikHttpException {
+        HttpResponse response = doHttp(apiUrl, httpMethod, payload);
+        int responseCode = response.getStatusLine().getStatusCode();
+
+        switch (responseCode) {
+            case HttpStatus.SC_OK:
+            case HttpStatus.SC_ACCEPTED:
+            case HttpStatus.SC_CREATED:
+                return response.getEntity().getContent();
+            default:
+                String responseBody = response.getEntity() == null ? "" : BobikClient.convertStreamToString(response.getEntity().getContent());
+                throw new BobikHttpException(responseCode, getRetryAfterMs(response),
+                        "Error - HTTP Response Code: " + responseCode + ", HTTP Response Body: " + responseBody);
+        }
+    }
+
+
+    /**
+     * @param response
+     * @return delay requested by the response's Retry-After header (in seconds), or -1 if there is none
+     */
+    private static long getRetryAfterMs(HttpResponse response) {
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter == null)
+            return -1;
+        try {
+            return Long.parseLong(retryAfter.getValue().trim()) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;  // HTTP dates are not supported
+        }
+    }
+
+
+    /**
+     * Performs basic HTTP communication. Also unifies serialization of query parameters.
+     * Runs on the calling thread.
+     * @param url base url
+     * @param httpMethod GET/POST
+     * @param data
+     * @return response
+     * @throws IOException
+     * @throws JSONException
+     */
+    HttpResponse doHttp(final String url, final String httpMethod, final JSONObject data) throws IOException, JSONException {
+        return doHttp(url, httpMethod, httpMethod.equalsIgnoreCase("POST") ? data.toString() : buildQueryString(data));
+    }
+
+    /**
+     * Performs basic HTTP communication on the calling thread
+     * @param url base url
+     * @param httpMethod GET/POST
+     * @param payload JSON body of a POST, or query string of a GET
+     * @return response
+     * @throws IOException
+     */
+    private HttpResponse doHttp(final String url, final String httpMethod, final String payload) throws IOException {
+        final HttpClient client = getHttpClient();
+        HttpRequestBase httpRequest;
+        long bytesOut;
+        if (httpMethod.equalsIgnoreCase("POST")) {
+            httpRequest = new HttpPost(url);
+            try {
+                //HttpEntity body = new UrlEncodedFormEntity(data.toString().getBytes("UTF8"));
+                String json = payload;
+                AbstractHttpEntity body;
+                int threshold = requestCompressionThreshold;
+                if (threshold >= 0 && json.length() >= threshold) {
+                    byte[] raw = json.getBytes(HTTP.UTF_8);
+                    byte[] compressed = gzip(raw);
+                    body = new ByteArrayEntity(compressed);
+                    body.setContentEncoding("gzip");
+                    metrics.onCompression(httpMethod, true, raw.length, compressed.length);
+                } else {
+                    body = new StringEntity(json);
+                }
+                body.setContentType("application/json");
+                ((HttpPost)httpRequest).setEntity(body);
+                bytesOut = body.getContentLength();
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        } else {
+            httpRequest = new HttpGet(url + (url.endsWith("?")? "&" : "?") + payload);
+            bytesOut = payload.length();
+        }
+        httpRequest.setHeader("Accept", "application/json");
+        if (compressResponses)
+            httpRequest.setHeader("Accept-Encoding", "gzip");
+        // Timeouts are applied per request so that setTimeoutMs() keeps working with the shared client
+        HttpConnectionParams.setConnectionTimeout(httpRequest.getParams(), timeoutMs);
+        HttpConnectionParams.setSoTimeout(httpRequest.getParams(), timeoutMs);
+        Semaphore permits = requestPermits;
+        if (permits != null) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send a request");
+            }
+        }
+        long started = System.nanoTime();
+        HttpResponse response;
+        try {
+            response = client.execute(httpRequest);
+        } catch (IOException e) {
+            if (permits != null)
+                permits.release();
+            httpRequest.abort();
+            metrics.onHttpCall(httpMethod, -1, bytesOut, 0, (System.nanoTime() - started) / 1000000);
+            throw e;
+        } catch (RuntimeException e) {
+            if (permits != null)
+                permits.release();
+            throw e;
+        }
+        if (permits != null) {
+            if (response.getEntity() == null)
+                permits.release();
+            else
+                response.setEntity(new PermitEntity(response.getEntity(), permits));
+        }
+        if (metrics != NO_METRICS) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (response.getEntity() == null)
+                metrics.onHttpCall(httpMethod, statusCode, bytesOut, 0, (System.nanoTime() - started) / 1000000);
+            else
+                response.setEntity(new MeteredEntity(response.getEntity(), metrics, httpMethod, statusCode, bytesOut, started));
+        }
+        // Decoding goes last, so that the entities above see bytes as they came over the wire
+        if (response.getEntity() != null && GzipEntity.isGzipped(response.getEntity()))
+            response.setEntity(new GzipEntity(response.getEntity(), metrics, httpMethod));
+        return response;
+    }
+
+
+    private static byte[] gzip(byte[] raw) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(raw);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+
+    /**
+     * Serializes a request into URL query parameters
+     * @param data
+     * @return url-encoded query string
+     * @throws JSONException
+     */
+    static String buildQueryString(JSONObject data) throws JSONException {
+        List<NameValuePair> query_params = new LinkedList<NameValuePair>();
+        for (Iterator<?> i=data.keys(); i.hasNext(); ) {
+            String key = (String)i.next();
+            String value = data.get(key).toString();
+            query_params.add(new BasicNameValuePair(key, value));
+        }
+        return URLEncodedUtils.format(query_params, "utf-8");
+    }
+
+
+    /**
+     * Asks Bobik to stop working on a job
+     * @param job_id
+     * @param token auth token the job was submitted with
+     * @throws IOException
+     * @throws JSONException
+     */
+    void abortJob(String job_id, String token) throws IOException, JSONException {
+        String url = abortUrl + "/" + job_id + "/abort";
+        releaseConnection(doHttp(url, "GET", withAuthTokenParam("", token)));
+    }
+
+
+    /**
+     * Lazily builds the HTTP client shared by all calls made by this BobikClient.
+     * Connections are pooled (bounded per host and in total), kept alive between calls
+     * and evicted once they go idle.
+     * @return shared client
+     */
+    private synchronized HttpClient getHttpClient() {
+        if (closed)
+            throw new IllegalStateException("BobikClient has been closed");
+        if (httpClient == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+            HttpConnectionParams.setConnectionTimeout(params, timeoutMs);
+            HttpConnectionParams.setSoTimeout(params, timeoutMs);
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            ConnManagerParams.setMaxTotalConnections(params, maxConnectionsTotal);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+            ConnManagerParams.setTimeout(params, timeoutMs);
+
+            SchemeRegistry schemes = new SchemeRegistry();
+            schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+            connectionManager = new ThreadSafeClientConnManager(params, schemes);
+
+            httpClient = new DefaultHttpClient(connectionManager, params);
+            httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    // Honor the server's 'Keep-Alive: timeout=N' hint if there is one
+                    HeaderElementIterator i = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                    while (i.hasNext()) {
+                        HeaderElement element = i.nextElement();
+                        if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                            try {
+                                return Long.parseLong(element.getValue()) * 1000;
+                            } catch (NumberFormatException e) {
+                                break;
+                            }
+                        }
+                    }
+                    return keepAliveMs;
+                }
+            });
+
+            final ThreadSafeClientConnManager pool = connectionManager;
+            long evictionPeriodMs = Math.max(1000, idleConnectionTimeoutMs / 2);
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    pool.closeExpiredConnections();
+                    pool.closeIdleConnections(idleConnectionTimeoutMs, TimeUnit.MILLISECONDS);
+                }
+            }, evictionPeriodMs, evictionPeriodMs, TimeUnit.MILLISECONDS);
+        }
+        return httpClient;
+    }
+
+
+    /**
+     * Returns the connection behind a response to the pool without reading its body
+     * @param response
+     * @throws IOException
+     */
+    private static void releaseConnection(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity != null)
+            entity.consumeContent();
+    }
+
+
+    static String convertStreamToString(InputStream is) throws IOException {
+        Reader reader = new InputStreamReader(is, HTTP.UTF_8);
         StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[8192];
 
         try {
-            String line = null;
-            while ((line = reader.readLine()) != null)
-                sb.append(line + "\n");
+            int count;
+            while ((count = reader.read(buffer)) != -1)
+                sb.append(buffer, 0, count);
         } finally {
             is.close();
         }
@@ -372,16 +1561,559 @@ public class BobikClient {
     }
 
 
+    /**
+     * @return the token calls that don't belong to any job are made with: the client's own, or else the first token of its pool
+     */
+    String getDefaultToken() {
+        AuthTokenPool pool = authTokenPool;
+        return authToken != null || pool == null ? authToken : pool.getTokens().get(0);
+    }
+    public AuthTokenPool getAuthTokenPool() {
+        return authTokenPool;
+    }
+    /**
+     * @param authTokenPool accounts to spread new jobs across, or null to submit all jobs with {@link #getAuthToken()}.
+     * Jobs already submitted keep their token.
+     */
+    public void setAuthTokenPool(AuthTokenPool authTokenPool) {
+        this.authTokenPool = authTokenPool;
+    }
     public String getAuthToken() {
         return authToken;
     }
     public void setAuthToken(String authToken) {
         this.authToken = authToken;
     }
+    public String getApiUrl() {
+        return apiUrl;
+    }
+    /**
+     * Points this client at a different Bobik endpoint, e.g. a mock server for load testing.
+     * Defaults to {@link BobikConstants#BOBIK_URL}.
+     * @param apiUrl
+     */
+    public void setApiUrl(String apiUrl) {
+        this.apiUrl = apiUrl;
+    }
+    public String getAbortUrl() {
+        return abortUrl;
+    }
+    /**
+     * Defaults to {@link BobikConstants#BOBIK_ABORT_URL}
+     * @param abortUrl prefix of job abort urls
+     */
+    public void setAbortUrl(String abortUrl) {
+        this.abortUrl = abortUrl;
+    }
     public int getTimeoutMs() {
         return timeoutMs;
     }
+    /**
+     * @param timeoutMs connection and socket timeout of HTTP calls. Also how long {@link Job#waitForCompletion()}
+     * waits for a job, counting from its submission. Jobs themselves are monitored for as long as they run.
+     */
     public void setTimeoutMs(int timeoutMs) {
         this.timeoutMs = timeoutMs;
     }
+    /**
+     * @return size of the I/O pool, or 0 if blocking calls are made on a caller-supplied executor or virtual threads
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+    /**
+     * @return max number of HTTP requests in flight, or 0 if only the connection pool bounds them
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+    /**
+     * Bounds the number of HTTP requests in flight. Callers beyond the bound wait for a request to finish,
+     * rather than for a pooled connection, which would time out. Mostly useful with an executor that runs
+     * every task on a thread of its own. Takes effect for requests made after the call.
+     * @param maxConcurrentRequests or 0 to let the connection pool bound requests
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.requestPermits = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests, true) : null;
+    }
+    public RateLimiter getSubmitRateLimiter() {
+        return submitRateLimiter;
+    }
+    /**
+     * @param submitRateLimiter limits the rate of job submissions (retries included), or null for no limit
+     */
+    public void setSubmitRateLimiter(RateLimiter submitRateLimiter) {
+        this.submitRateLimiter = submitRateLimiter;
+    }
+    public RateLimiter getPollRateLimiter() {
+        return pollRateLimiter;
+    }
+    /**
+     * @param pollRateLimiter limits the rate of status checks, or null for no limit
+     */
+    public void setPollRateLimiter(RateLimiter pollRateLimiter) {
+        this.pollRateLimiter = pollRateLimiter;
+    }
+    public RateLimiter getFetchRateLimiter() {
+        return fetchRateLimiter;
+    }
+    /**
+     * @param fetchRateLimiter limits the rate of result downloads, or null for no limit
+     */
+    public void setFetchRateLimiter(RateLimiter fetchRateLimiter) {
+        this.fetchRateLimiter = fetchRateLimiter;
+    }
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+    /**
+     * @param backpressure what scrape() does when the submission rate limit is reached
+     */
+    public void setBackpressure(Backpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+    public int getMaxPendingSubmissions() {
+        return maxPendingSubmissions;
+    }
+    /**
+     * @param maxPendingSubmissions max number of jobs queued up in {@link Backpressure#PENDING} mode.
+     * Beyond that, scrape() throws a BobikException.
+     */
+    public void setMaxPendingSubmissions(int maxPendingSubmissions) {
+        this.maxPendingSubmissions = maxPendingSubmissions;
+    }
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+    /**
+     * @param retryPolicy decides which failed API calls are retried. Also keeps count of the outcome of every call.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+    public Executor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+    /**
+     * Listener callbacks and completion handlers of each job are queued up and delivered on this executor, one at a time
+     * and in order, while different jobs deliver in parallel. A slow listener thus only holds up its own job.
+     * The client's own dispatch pool (as many threads as the I/O pool) is shut down when replaced; a caller-supplied
+     * executor is never shut down by the client.
+     * @param dispatchExecutor
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        Executor replaced;
+        boolean shutdown;
+        synchronized (this) {
+            replaced = this.dispatchExecutor;
+            shutdown = ownsDispatchExecutor;
+            this.dispatchExecutor = dispatchExecutor;
+            ownsDispatchExecutor = false;
+        }
+        if (shutdown && replaced != dispatchExecutor)
+            ((ExecutorService)replaced).shutdown();
+    }
+    public PollStrategy getPollStrategy() {
+        return pollStrategy;
+    }
+    /**
+     * @param pollStrategy decides when running jobs are checked on next. Defaults to an {@link AdaptivePollStrategy}.
+     */
+    public void setPollStrategy(PollStrategy pollStrategy) {
+        this.pollStrategy = pollStrategy;
+    }
+    public BobikMetrics getMetrics() {
+        return metrics;
+    }
+    /**
+     * Installs a receiver for timings of every HTTP call and job lifecycle event
+     * @param metrics e.g. an {@link InMemoryBobikMetrics}, or null to stop recording
+     */
+    public void setMetrics(BobikMetrics metrics) {
+        this.metrics = metrics == null ? NO_METRICS : metrics;
+    }
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+    /**
+     * Enables caching of scraped data. Urls found in the cache are not submitted to Bobik again
+     * (see {@link ResultCache}). Jobs with a {@link StreamingJobListener} bypass the cache.
+     * @param resultCache or null (the default) to disable caching
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+    public boolean isCompressResponses() {
+        return compressResponses;
+    }
+    /**
+     * When enabled (the default), Bobik is asked to gzip its responses. Compressed responses are decoded
+     * as they are read, so results still stream straight into the parser.
+     * @param compressResponses
+     */
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+    /**
+     * Sends job submissions gzipped (with Content-Encoding: gzip) if their body is at least this large.
+     * Only enable it if the endpoint accepts compressed requests.
+     * @param requestCompressionThreshold size in characters, or -1 (the default) to never compress requests
+     */
+    public void setRequestCompressionThreshold(int requestCompressionThreshold) {
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+    public boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+    /**
+     * When enabled, a scrape() identical to one whose job is still running (same request, apart from the auth token)
+     * doesn't start a job of its own. Instead, it returns the running job and its listener receives the same
+     * callbacks as the original listener from then on, including the same result object. Cancelling the job
+     * cancels it for all callers. Jobs with a {@link StreamingJobListener} are never shared.
+     * @param coalesceRequests
+     */
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+    /**
+     * @return number of scrape() calls that attached to a running job instead of starting one
+     */
+    public long getCoalescedRequests() {
+        synchronized (requestsInFlight) {
+            return coalescedRequests;
+        }
+    }
+    public JobJournal getJobJournal() {
+        return jobJournal;
+    }
+    /**
+     * Makes this client record every job it submits, so that {@link #resume()} can pick them up after a restart.
+     * Failing to write to the journal is reported to the metrics, but doesn't fail the job.
+     * The journal is not closed along with this client.
+     * @param jobJournal or null (the default) to stop journalling
+     */
+    public void setJobJournal(JobJournal jobJournal) {
+        this.jobJournal = jobJournal;
+    }
+    public ResultStore getResultStore() {
+        return resultStore;
+    }
+    /**
+     * Makes every job write its results into a persistent store once they are downloaded.
+     * Failing to store results is reported to the metrics, but doesn't fail the job.
+     * The store is not closed along with this client.
+     * @param resultStore or null (the default) to stop storing results
+     */
+    public void setResultStore(ResultStore resultStore) {
+        this.resultStore = resultStore;
+    }
+    public boolean isIncrementalResults() {
+        return incrementalResults;
+    }
+    /**
+     * When enabled, results that become available while a job is running are fetched whenever
+     * its progress moves forward, and handed to {@link JobListener#onPartialResults(JSONObject)}.
+     * @param incrementalResults
+     */
+    public void setIncrementalResults(boolean incrementalResults) {
+        this.incrementalResults = incrementalResults;
+    }
+    public long getStatusBatchWindowMs() {
+        return monitor.getBatchWindowMs();
+    }
+    /**
+     * Enables batched status checks: checks falling due within this many ms of each other
+     * are sent to Bobik as a single request covering all of those jobs. Set to 0 (the default)
+     * to check on every job with a request of its own.
+     * @param statusBatchWindowMs
+     */
+    public void setStatusBatchWindowMs(long statusBatchWindowMs) {
+        monitor.setBatchWindowMs(statusBatchWindowMs);
+    }
+    public int getMaxStatusBatchSize() {
+        return monitor.getMaxBatchSize();
+    }
+    public void setMaxStatusBatchSize(int maxStatusBatchSize) {
+        monitor.setMaxBatchSize(maxStatusBatchSize);
+    }
+    public int getMaxConnectionsTotal() {
+        return maxConnectionsTotal;
+    }
+    /**
+     * Only takes effect if called before the first request is made
+     * @param maxConnectionsTotal
+     */
+    public void setMaxConnectionsTotal(int maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+    /**
+     * Only takes effect if called before the first request is made
+     * @param maxConnectionsPerRoute
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+    public long getIdleConnectionTimeoutMs() {
+        return idleConnectionTimeoutMs;
+    }
+    /**
+     * Only takes effect if called before the first request is made
+     * @param idleConnectionTimeoutMs
+     */
+    public void setIdleConnectionTimeoutMs(long idleConnectionTimeoutMs) {
+        this.idleConnectionTimeoutMs = idleConnectionTimeoutMs;
+    }
+    public long getKeepAliveMs() {
+        return keepAliveMs;
+    }
+    public void setKeepAliveMs(long keepAliveMs) {
+        this.keepAliveMs = keepAliveMs;
+    }
+
+
+    /**
+     * Stands between a job scraping the urls missing from the cache and the user's listener.
+     * Stores freshly scraped data in the cache, and adds the cached data to it before passing it on.
+     */
+    private class CachingJobListener extends JobListener {
+        private final JobListener listener;
+        private final ResultCache cache;
+        private final String request_key;
+        private final JSONObject cached;
+        private final int total_urls;
+
+        CachingJobListener(JobListener listener, ResultCache cache, String request_key, JSONObject cached, int total_urls) {
+            this.listener = listener;
+            this.cache = cache;
+            this.request_key = request_key;
+            this.cached = cached;
+            this.total_urls = total_urls;
+        }
+
+        @Override
+        void attached(Job job) {
+            listener.init(job);
+        }
+
+        @Override
+        public void onSuccess(JSONObject scraped_data) {
+            // Merged in place, so that Job.get() returns the cached data as well
+            try {
+                for (Iterator<?> i=scraped_data.keys(); i.hasNext(); ) {
+                    String url = (String)i.next();
+                    cache.put(url, request_key, scraped_data.get(url));
+                }
+                if (incrementalResults && cached.length() > 0)
+                    listener.onPartialResults(cached);
+                for (Iterator<?> i=cached.keys(); i.hasNext(); ) {
+                    String url = (String)i.next();
+                    scraped_data.put(url, cached.get(url));
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            listener.onSuccess(scraped_data);
+        }
+
+        @Override
+        public void onProgress(float currentProgress) {
+            // Cached urls count as done
+            int fresh_urls = total_urls - cached.length();
+            listener.onProgress((cached.length() + currentProgress * fresh_urls) / total_urls);
+        }
+
+        @Override
+        public void onPartialResults(JSONObject partial_data) {
+            listener.onPartialResults(partial_data);
+        }
+
+        @Override
+        public void onErrors(Collection<String> errors) {
+            listener.onErrors(errors);
+        }
+    }
+
+
+    /**
+     * Relays the callbacks of a job to every listener that asked for the same request
+     */
+    private static class FanOutListener extends JobListener {
+        private final List<JobListener> listeners = new ArrayList<JobListener>();
+        private boolean done = false;
+        private float last_progress = -1;
+        private JSONObject results = null;
+
+        /*
+         * Set once the first caller is done submitting the job
+         */
+        private final CountDownLatch submission = new CountDownLatch(1);
+        private volatile Job shared_job;
+        private volatile Exception submit_failure;
+
+        FanOutListener(JobListener first) {
+            listeners.add(first);
+        }
+
+        /**
+         * @param listener
+         * @return false if the job has already delivered its results, and can't take any more listeners
+         */
+        boolean add(final JobListener listener) {
+            final Job running;
+            synchronized (this) {
+                if (done)
+                    return false;
+                running = job;
+                if (running == null) {
+                    // Not submitted yet, so there's nothing to catch up with. attached() initializes the listener.
+                    listeners.add(listener);
+                    return true;
+                }
+            }
+            // Join on the job's own queue, so that the catch-up reaches the listener before any later callback
+            ((BobikJob)running).dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    float progress;
+                    JSONObject scraped_data;
+                    synchronized (FanOutListener.this) {
+                        listeners.add(listener);
+                        progress = last_progress;
+                        scraped_data = results;
+                    }
+                    listener.init(running);
+                    if (progress >= 0)
+                        listener.onProgress(progress);
+                    // The job may have succeeded between the check above and now
+                    if (scraped_data != null)
+                        listener.onSuccess(scraped_data);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Called by the first caller once submission is over
+         * @param job null if submission failed
+         * @param failure
+         */
+        void released(Job job, Exception failure) {
+            shared_job = job;
+            submit_failure = failure;
+            submission.countDown();
+        }
+
+        Job awaitJob() throws BobikException, InterruptedException {
+            submission.await();
+            if (submit_failure != null)
+                throw new BobikException("Identical request failed to start", submit_failure);
+            return shared_job;
+        }
+
+        /**
+         * Stops taking listeners once the job is over
+         */
+        synchronized void close() {
+            done = true;
+        }
+
+        private synchronized List<JobListener> snapshot() {
+            return new ArrayList<JobListener>(listeners);
+        }
+
+        @Override
+        void attached(Job job) {
+            for (JobListener listener : snapshot())
+                listener.init(job);
+        }
+
+        @Override
+        public void onSuccess(JSONObject scraped_data) {
+            List<JobListener> targets;
+            synchronized (this) {
+                done = true;
+                results = scraped_data;
+                targets = new ArrayList<JobListener>(listeners);
+            }
+            for (JobListener listener : targets)
+                listener.onSuccess(scraped_data);
+        }
+
+        @Override
+        public void onProgress(float currentProgress) {
+            synchronized (this) {
+                last_progress = currentProgress;
+            }
+            for (JobListener listener : snapshot())
+                listener.onProgress(currentProgress);
+        }
+
+        @Override
+        public void onPartialResults(JSONObject partial_data) {
+            for (JobListener listener : snapshot())
+                listener.onPartialResults(partial_data);
+        }
+
+        @Override
+        public void onErrors(Collection<String> errors) {
+            for (JobListener listener : snapshot())
+                listener.onErrors(errors);
+        }
+    }
+
+
+    /**
+     * A job waiting to be submitted in PENDING mode. Orders by priority, then by arrival.
+     */
+    private static class PendingSubmission implements Comparable<PendingSubmission> {
+        final BobikJob job;
+        final ScrapeRequest request;
+        final long sequence;
+
+        PendingSubmission(BobikJob job, ScrapeRequest request, long sequence) {
+            this.job = job;
+            this.request = request;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PendingSubmission other) {
+            if (job.getPriority() != other.job.getPriority())
+                return job.getPriority().compareTo(other.job.getPriority());
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+
+    /**
+     * Names worker threads and keeps them from holding the JVM open
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private int count = 0;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -7,11 +7,16 @@ package bobik;
  */
 public class BobikConstants {
 	public static final String BOBIK_URL = "https://usebobik.com/api/v1/jobs";
+	public static final String BOBIK_ABORT_URL = "https://usebobik.com/jobs";
     public static final String PROGRESS_JSON_LABEL = "progress";
 	public static final String AUTH_TOKEN_LABEL = "auth_token";
 	public static final String ERROR_TOKEN_LABEL = "errors";
 	public static final String JOB_TOKEN_LABEL = "job";
+	public static final String JOBS_TOKEN_LABEL = "jobs";
     public static final String SKIP_DATA_TOKEN_LABEL = "no_results";
 	public static final String RESULTS_TOKEN_LABEL = "results";
+	public static final String RESULTS_OFFSET_TOKEN_LABEL = "results_offset";
+	public static final String URLS_TOKEN_LABEL = "urls";
+	public static final String QUERIES_TOKEN_LABEL = "queries";
     public static final String ESTIMATED_TIME_REMAINING_TOKEN_LABEL = "estimated_time_left_ms";
 }
@@ -7,7 +7,7 @@ package bobik;
 public class BobikException extends Exception {
 	private static final long serialVersionUID = 3991890458175163776L;
 	public BobikException(Exception e) {
-		
+		super(e);
 	}
 	
 	public BobikException(String errMessage) {
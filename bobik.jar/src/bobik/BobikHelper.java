@@ -5,9 +5,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A collection of recurring and useful utility functions
@@ -30,48 +32,75 @@ public class BobikHelper {
      * If the incoming arrays have different length, then a smart selector logic applies.
      * Empty arrays are ignored. Non-empty arrays must all have the same length. If they don't,
      * then an exception is thrown.
+     * <br><br>
+     * Every row is copied into a JSONObject of its own. For large inputs, consider walking
+     * a {@link ResultTable} instead.
      * @param x a hash of parallel arrays
      * @throws ArrayIndexOutOfBoundsException if arrays are not of equal length
      * @throws JSONException if the incoming object is not of the expected format
      * @return a transposed array
      */
     public static List<JSONObject> transpose(JSONObject x) throws ArrayIndexOutOfBoundsException, JSONException {
-        List<JSONObject> results = null;
-        // Do a first pass to check array lengths and determine the keys that we'll be working with
-        List<String> keys = new LinkedList<String>();
-        int common_array_length = 0;
-        for (Iterator i=x.keys(); i.hasNext(); ) {
-            String key = (String)i.next();
-            JSONArray values = x.getJSONArray(key);
-            if (values.length() == 0)
-                continue;   // this key has no values => skip it
-            if (common_array_length == 0)
-                common_array_length = values.length();  // this is the first non-zero length => use it as standard
-            else if (values.length() != common_array_length)
-                throw new ArrayIndexOutOfBoundsException("Number of elements labelled '" + key
-                        + "' (" + values.length() + ") does not match expected length of " + common_array_length);
-            keys.add(key);
-        }
-        // Fill array with empty container objects
-        if (results == null) {
-            results = new ArrayList<JSONObject>(common_array_length);
-            for (int z=0; z<common_array_length; z++)
-                results.add(new JSONObject());
-        }
-        // Now, populate the array with real results, inserting null when no data is available upon transposition
-        for (Iterator i=keys.iterator(); i.hasNext(); ) {
-            String key = (String)i.next();
-            JSONArray values = x.getJSONArray(key);
-            for (int z=0; z<values.length(); z++) {
-                Object val = null;
-                try {
-                    val = values.get(z);
-                } catch (JSONException e) {
-                }
-                results.get(z).put(key, val);
+        return new ResultTable(x).toJSONObjects();
+    }
+
+    /**
+     * Same as {@link #transpose(JSONObject)}, but splits the work across an executor.
+     * Only worth it for very long or very wide inputs. To avoid copying rows altogether,
+     * use a {@link ResultTable} directly.
+     * @param x a hash of parallel arrays
+     * @param executor runs conversion tasks
+     * @param parallelism max number of tasks to split the work into
+     * @throws ArrayIndexOutOfBoundsException if arrays are not of equal length
+     * @throws JSONException if the incoming object is not of the expected format
+     * @throws InterruptedException
+     * @throws ExecutionException
+     * @return a transposed array
+     */
+    public static List<JSONObject> transpose(JSONObject x, ExecutorService executor, int parallelism) throws ArrayIndexOutOfBoundsException, JSONException, InterruptedException, ExecutionException {
+        return new ResultTable(x).toJSONObjects(executor, parallelism);
+    }
+
+    /**
+     * Serializes a JSON value with the keys of every object sorted, so that equal values always serialize the same way
+     * @param value
+     * @return canonical JSON text
+     * @throws JSONException
+     */
+    static String canonicalJson(Object value) throws JSONException {
+        StringBuilder sb = new StringBuilder();
+        appendCanonical(sb, value);
+        return sb.toString();
+    }
+
+    private static void appendCanonical(StringBuilder sb, Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject)value;
+            List<String> keys = new ArrayList<String>(object.length());
+            for (Iterator<?> i=object.keys(); i.hasNext(); )
+                keys.add((String)i.next());
+            Collections.sort(keys);
+            sb.append('{');
+            for (int k=0; k<keys.size(); k++) {
+                if (k > 0)
+                    sb.append(',');
+                sb.append(JSONObject.quote(keys.get(k))).append(':');
+                appendCanonical(sb, object.get(keys.get(k)));
             }
+            sb.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray)value;
+            sb.append('[');
+            for (int i=0; i<array.length(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                appendCanonical(sb, array.get(i));
+            }
+            sb.append(']');
+        } else if (value instanceof String) {
+            sb.append(JSONObject.quote((String)value));
+        } else {
+            sb.append(value);
         }
-        return results;
-
     }
 }
@@ -0,0 +1,38 @@
+package bobik;
+
+/**
+ * Thrown when Bobik responds to an API call with an HTTP error
+ *
+ */
+public class BobikHttpException extends BobikException {
+	private static final long serialVersionUID = -2470383128518512649L;
+
+	private final int statusCode;
+	private final long retryAfterMs;
+
+	/**
+	 * @param statusCode HTTP status code of the response
+	 * @param retryAfterMs delay requested by the server's Retry-After header, or -1 if there was none
+	 * @param errMessage
+	 */
+	public BobikHttpException(int statusCode, long retryAfterMs, String errMessage) {
+		super(errMessage);
+		this.statusCode = statusCode;
+		this.retryAfterMs = retryAfterMs;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public long getRetryAfterMs() {
+		return retryAfterMs;
+	}
+
+	/**
+	 * @return true if the server is overloaded or failing, as opposed to rejecting the request itself
+	 */
+	public boolean isServerFailure() {
+		return statusCode >= 500 || statusCode == 429;
+	}
+}
@@ -0,0 +1,691 @@
+package bobik;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default Job implementation, backed by Bobik's job status API.
+ * Progress is checked by the client's JobMonitor rather than by a thread dedicated to this job.
+ * <br><br>
+ * Listener callbacks and completion handlers go through the job's CallbackQueue, so they're delivered in order
+ * on the client's dispatch executor, never on the threads making HTTP calls. Each callback is made at most once:
+ * errors already reported are not reported again, and nothing is reported after the job has finished.
+ * Completion handlers (and waiters) are only released once the listener has seen everything.
+ * @author Eugene Mirkin
+ */
+class BobikJob implements Job {
+
+    private final BobikClient client;
+    private final JobListener listener;
+
+    /*
+     * Relays callbacks to listener through dispatchQueue
+     */
+    private final CallbackQueue dispatchQueue;
+    private final JobListener callbacks;
+
+    /*
+     * How urgent the job is, and how long it may take (0 for no deadline)
+     */
+    private final BobikClient.Priority priority;
+    private final long deadlineMs;
+    private final long createTime;
+
+    /*
+     * All set once the job has been submitted
+     */
+    private volatile String job_id;
+    private volatile long startTime;
+    private volatile String authToken;
+    private volatile AuthTokenPool authTokenPool;
+
+    /*
+     * Key of the job's JobJournal entry, once it has one
+     */
+    private volatile String journalKey;
+
+    /*
+     * Set when the client stops monitoring the job while it may still be running on Bobik,
+     * so that it stays in the journal to be resumed
+     */
+    private volatile boolean resumable = false;
+
+    private volatile JSONObject scraped_data = null;
+    private volatile int estimated_completion_time_ms = -1;
+    private volatile boolean cancelled = false;
+    private volatile Exception failure = null;
+    private volatile boolean finished = false;
+
+    /*
+     * Status checks made so far, and whether any progress has been seen yet
+     */
+    private final AtomicInteger polls = new AtomicInteger();
+    private volatile boolean progress_reported = false;
+
+    /*
+     * Pace of the job as of the last two successful status checks, used by the PollStrategy.
+     * Only touched by the JobMonitor, which never polls the same job concurrently.
+     */
+    private float last_progress = 0;
+    private float previous_progress = 0;
+    private long last_poll_time;
+    private long previous_poll_time;
+    private int consecutive_errors = 0;
+
+    /*
+     * Keys of result entries already passed to onPartialResults, and progress as of the last partial fetch
+     */
+    private final Set<String> delivered_keys = new HashSet<String>();
+    private float partial_results_progress = 0;
+
+    /*
+     * Released once the job succeeds, fails or is cancelled
+     */
+    private final CountDownLatch completion = new CountDownLatch(1);
+
+    /*
+     * Handlers waiting for this job to finish. Set to null once they've been called.
+     */
+    private List<JobCompletionHandler> completionHandlers = new ArrayList<JobCompletionHandler>();
+
+    /**
+     * Creates a job that has yet to be submitted
+     * @param client
+     * @param listener
+     */
+    BobikJob(BobikClient client, JobListener listener) {
+        this(client, listener, BobikClient.Priority.NORMAL, 0);
+    }
+
+    /**
+     * Creates a job that has yet to be submitted
+     * @param client
+     * @param listener
+     * @param priority
+     * @param deadlineMs ms the job may take from now, or 0 for no deadline
+     */
+    BobikJob(BobikClient client, JobListener listener, BobikClient.Priority priority, long deadlineMs) {
+        this.client = client;
+        this.listener = listener;
+        this.dispatchQueue = new CallbackQueue(client);
+        this.callbacks = new DispatchingListener();
+        this.priority = priority;
+        this.deadlineMs = deadlineMs;
+        this.createTime = System.currentTimeMillis();
+        this.startTime = createTime;
+    }
+
+    /**
+     * Called once Bobik has accepted the job
+     * @param job_id
+     * @param startTime
+     * @param authToken token the job was submitted with, used for all further calls about it
+     * @param authTokenPool pool the token was taken from, to be given back once the job is over, or null
+     */
+    void submitted(String job_id, long startTime, String authToken, AuthTokenPool authTokenPool) {
+        this.job_id = job_id;
+        this.startTime = startTime;
+        this.authToken = authToken;
+        this.authTokenPool = authTokenPool;
+        this.last_poll_time = startTime;
+        this.previous_poll_time = startTime;
+    }
+
+    /**
+     * @return listener whose callbacks are delivered in order on the dispatch executor
+     */
+    JobListener getListener() {
+        return callbacks;
+    }
+
+    /**
+     * Queues up a call to the listener behind the callbacks made so far
+     * @param callback
+     */
+    void dispatch(Runnable callback) {
+        dispatchQueue.execute(callback);
+    }
+
+    String getAuthToken() {
+        return authToken;
+    }
+
+    BobikClient.Priority getPriority() {
+        return priority;
+    }
+
+    String getJournalKey() {
+        return journalKey;
+    }
+    void setJournalKey(String journalKey) {
+        this.journalKey = journalKey;
+    }
+
+    /**
+     * @return time (as in System.currentTimeMillis()) by which the job has to be finished, or Long.MAX_VALUE if it has no deadline
+     */
+    long getDeadline() {
+        return deadlineMs > 0 ? createTime + deadlineMs : Long.MAX_VALUE;
+    }
+
+    private JSONObject getStatusRequestObj(boolean download_results) throws BobikException, JSONException {
+        JSONObject progress_check = new JSONObject();
+        progress_check.accumulate(BobikConstants.JOB_TOKEN_LABEL, id());
+        progress_check.accumulate(BobikConstants.SKIP_DATA_TOKEN_LABEL, !download_results);
+        return progress_check;
+    }
+
+    @Override
+    public String id() {
+        return job_id;
+    }
+
+    @Override
+    public float getProgress() throws BobikException {
+        if (job_id == null)
+            throw new BobikException("Job has not been submitted yet");
+        JSONObject status_check;
+        try {
+            status_check = client.callAPI(getStatusRequestObj(false), "GET", authToken);
+        } catch (RetryLaterException e) {
+            // Not a failure yet: the JobMonitor checks again once the backoff is over
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            client.getMetrics().onError("status", e);
+            throw new BobikException(e);
+        }
+        return processStatus(status_check);
+    }
+
+    /**
+     * Updates this job from a status check (no results) and notifies the listener
+     * @param status_check status of this job as reported by Bobik
+     * @return progress
+     * @throws BobikException
+     */
+    float processStatus(JSONObject status_check) throws BobikException {
+        polls.incrementAndGet();
+        try {
+            client.processErrors(status_check, callbacks);
+            float progress = (float)status_check.getDouble(BobikConstants.PROGRESS_JSON_LABEL);
+            if (progress > 0 && !progress_reported) {
+                progress_reported = true;
+                client.getMetrics().onFirstProgress(id(), System.currentTimeMillis() - startTime);
+            }
+            estimated_completion_time_ms = status_check.getInt(BobikConstants.ESTIMATED_TIME_REMAINING_TOKEN_LABEL);
+            JobJournal journal = client.getJobJournal();
+            if (journal != null && progress < 1.0)
+                journal.progress(id(), progress);
+            callbacks.onProgress(progress);
+            if (progress == 1.0)
+                fetchScrapedData();
+            else if (client.isIncrementalResults() && progress > partial_results_progress)
+                fetchPartialResults(progress);
+            return progress;
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (!(e instanceof BobikException))
+                client.getMetrics().onError("status", e);
+            throw new BobikException(e);
+        }
+    }
+
+    protected void fetchScrapedData() throws BobikException {
+        try {
+            if (listener instanceof StreamingJobListener) {
+                streamScrapedData((StreamingJobListener)listener);
+            } else {
+                JSONObject job_data = client.callAPI(getStatusRequestObj(true), "GET", authToken);
+                client.processErrors(job_data, callbacks);
+                scraped_data = job_data.getJSONObject(BobikConstants.RESULTS_TOKEN_LABEL);
+                store(scraped_data);
+                if (client.isIncrementalResults())
+                    deliverPartialResults(scraped_data);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            client.getMetrics().onError("results", e);
+            throw new BobikException(e);
+        }
+        callbacks.onSuccess(scraped_data);
+        finish();
+    }
+
+    /**
+     * Completes a job without submitting it, e.g. when all of its data was found in the result cache
+     * @param scraped_data
+     */
+    void completed(JSONObject scraped_data) {
+        this.scraped_data = scraped_data;
+        callbacks.onProgress(1);
+        callbacks.onSuccess(scraped_data);
+        finish();
+    }
+
+    /**
+     * Writes results into the client's ResultStore, if it has one
+     * @param results
+     */
+    private void store(JSONObject results) {
+        ResultStore store = client.getResultStore();
+        if (store == null)
+            return;
+        try {
+            store.put(id(), results);
+        } catch (Exception e) {
+            e.printStackTrace();
+            client.getMetrics().onError("store", e);
+        }
+    }
+
+    private void store(String key, Object record) {
+        ResultStore store = client.getResultStore();
+        if (store == null)
+            return;
+        try {
+            store.put(id(), key, record);
+        } catch (Exception e) {
+            e.printStackTrace();
+            client.getMetrics().onError("store", e);
+        }
+    }
+
+    /**
+     * Downloads results that became available since the last partial fetch.
+     * Bobik is told how many entries we already have, so that it can skip them; entries
+     * that are sent again anyway are filtered out here.
+     * @param progress current progress of the job
+     * @throws Exception
+     */
+    private void fetchPartialResults(float progress) throws Exception {
+        JSONObject partial_check = getStatusRequestObj(true);
+        synchronized (delivered_keys) {
+            partial_check.put(BobikConstants.RESULTS_OFFSET_TOKEN_LABEL, delivered_keys.size());
+        }
+        JSONObject job_data = client.callAPI(partial_check, "GET", authToken);
+        JSONObject results = job_data.optJSONObject(BobikConstants.RESULTS_TOKEN_LABEL);
+        if (results != null)
+            deliverPartialResults(results);
+        partial_results_progress = progress;
+    }
+
+    /**
+     * Passes the entries of the results that haven't been seen yet to onPartialResults
+     * @param results
+     * @throws JSONException
+     */
+    private void deliverPartialResults(JSONObject results) throws JSONException {
+        JSONObject fresh = new JSONObject();
+        synchronized (delivered_keys) {
+            for (Iterator<?> i=results.keys(); i.hasNext(); ) {
+                String key = (String)i.next();
+                if (delivered_keys.add(key))
+                    fresh.put(key, results.get(key));
+            }
+        }
+        if (fresh.length() > 0)
+            callbacks.onPartialResults(fresh);
+    }
+
+    /**
+     * Parses results straight off the wire, handing each entry to the listener as soon as it's read.
+     * Only one entry is held in memory at a time, so records are handed over on the calling thread rather than queued up,
+     * once all earlier callbacks have been delivered.
+     * @param streaming_listener
+     * @throws Exception
+     */
+    private void streamScrapedData(StreamingJobListener streaming_listener) throws Exception {
+        dispatchQueue.awaitDelivery();
+        JsonStreamReader reader = new JsonStreamReader(new InputStreamReader(client.openAPI(getStatusRequestObj(true), "GET", authToken), "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(BobikConstants.RESULTS_TOKEN_LABEL)) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String key = reader.nextName();
+                        Object record = reader.readValue();
+                        store(key, record);
+                        streaming_listener.onResultRecord(key, record);
+                    }
+                    reader.endObject();
+                } else if (name.equals(BobikConstants.ERROR_TOKEN_LABEL)) {
+                    JSONObject errors = new JSONObject();
+                    errors.put(BobikConstants.ERROR_TOKEN_LABEL, reader.readValue());
+                    client.processErrors(errors, callbacks);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        scraped_data = new JSONObject();
+    }
+
+    /**
+     * Performs a single status check on behalf of the JobMonitor
+     * @param status_check status already fetched as part of a batch, or null to fetch it now
+     * @return ms to wait before the next status check, or a negative value if the job no longer needs monitoring
+     */
+    long poll(JSONObject status_check) {
+        if (isFinished() || checkDeadline())
+            return -1;
+        PollStrategy strategy = client.getPollStrategy();
+        long now = System.currentTimeMillis();
+        float progress;
+        try {
+            progress = status_check == null ? getProgress() : processStatus(status_check);
+        } catch (BobikException e) {
+            return checkFailed(e);
+        }
+        if (progress == 1.0)
+            return -1;
+        consecutive_errors = 0;
+        previous_progress = last_progress;
+        previous_poll_time = last_poll_time;
+        last_progress = progress;
+        last_poll_time = now;
+        long delay = strategy.nextPollDelayMs(progress, previous_progress, now - previous_poll_time,
+                estimated_completion_time_ms, 0);
+        // Check back no later than the deadline, so that a job that misses it is aborted right away
+        return Math.max(0, Math.min(delay, getDeadline() - now + 1));
+    }
+
+    /**
+     * Accounts for a failed status check on behalf of the JobMonitor
+     * @param e what failed the check. If a RetryLaterException is among its causes, the next check comes after its delay,
+     *          and the PollStrategy only decides whether to give up.
+     * @return ms to wait before the next status check, or a negative value if the job has failed or no longer needs monitoring
+     */
+    long checkFailed(BobikException e) {
+        if (isFinished() || checkDeadline())
+            return -1;
+        consecutive_errors++;
+        long delay = client.getPollStrategy().nextPollDelayMs(last_progress, previous_progress, last_poll_time - previous_poll_time,
+                estimated_completion_time_ms, consecutive_errors);
+        if (delay < 0) {
+            stopMonitoring(e);
+            return delay;
+        }
+        long retry_delay = RetryLaterException.getDelayMs(e);
+        if (retry_delay >= 0)
+            delay = retry_delay;
+        return Math.max(0, Math.min(delay, getDeadline() - System.currentTimeMillis() + 1));
+    }
+
+    /**
+     * Marks this job as failed and wakes up everyone waiting on it
+     * @param e
+     */
+    void fail(Exception e) {
+        failure = e;
+        finish();
+    }
+
+    /**
+     * Fails this job without recording it as finished in the journal, as it may still be running on Bobik
+     * @param e
+     */
+    void stopMonitoring(Exception e) {
+        resumable = true;
+        fail(e);
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Settles the job, exactly once. Everyone waiting on it is woken up, and completion handlers are called,
+     * after the listener's callbacks have been delivered.
+     */
+    private void finish() {
+        final List<JobCompletionHandler> handlers;
+        synchronized (this) {
+            if (completionHandlers == null)
+                return;
+            handlers = completionHandlers;
+            completionHandlers = null;
+            finished = true;
+        }
+        if (authTokenPool != null)
+            authTokenPool.release(authToken);
+        JobJournal journal = client.getJobJournal();
+        if (journal != null && job_id != null && !resumable) {
+            try {
+                journal.finished(job_id);
+            } catch (Exception e) {
+                e.printStackTrace();
+                client.getMetrics().onError("journal", e);
+            }
+        }
+        client.getMetrics().onJobFinished(id(), System.currentTimeMillis() - startTime, polls.get(), !cancelled && failure == null);
+        dispatchQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                completion.countDown();
+                for (JobCompletionHandler handler : handlers)
+                    notifyHandler(handler);
+            }
+        });
+    }
+
+    private void notifyHandler(JobCompletionHandler handler) {
+        try {
+            if (cancelled)
+                handler.onComplete(this, null, new CancellationException("Job " + id() + " was cancelled"));
+            else
+                handler.onComplete(this, scraped_data, failure);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void whenComplete(final JobCompletionHandler handler) {
+        synchronized (this) {
+            if (completionHandlers != null) {
+                completionHandlers.add(handler);
+                return;
+            }
+        }
+        if (completion.getCount() == 0) {
+            notifyHandler(handler);
+            return;
+        }
+        // Finished, but the listener hasn't seen everything yet
+        dispatchQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                notifyHandler(handler);
+            }
+        });
+    }
+
+    /**
+     * Aborts the job on the server, unless it has already finished
+     * @param b ignored; the job never runs on a thread of its own
+     * @return false if the job had already succeeded, failed or been cancelled
+     */
+    @Override
+    public boolean cancel(boolean b) {
+        synchronized (this) {
+            if (completionHandlers == null)
+                return false;
+            cancelled = true;
+        }
+        try {
+            if (job_id != null)
+                client.abortJob(id(), authToken);
+        } catch (Exception e) {
+            e.printStackTrace();
+            client.getMetrics().onError("abort", e);
+        }
+        finish();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true once get() would return without blocking. Makes no calls to Bobik.
+     */
+    @Override
+    public boolean isDone() {
+        return completion.getCount() == 0;
+    }
+
+    @Override
+    public JSONObject get() throws InterruptedException, ExecutionException {
+        completion.await();
+        return getOutcome();
+    }
+
+    @Override
+    public JSONObject get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!completion.await(l, timeUnit))
+            throw new TimeoutException("Job " + id() + " did not complete within " + timeUnit.toMillis(l) + "ms");
+        return getOutcome();
+    }
+
+    private JSONObject getOutcome() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException("Job " + id() + " was cancelled");
+        if (failure != null)
+            throw new ExecutionException(new BobikException("Job " + id() + " failed", failure));
+        return scraped_data;
+    }
+
+    /**
+     * Aborts the job on the server and fails it, if it has a deadline and is past it
+     * @return true if the job missed its deadline
+     */
+    boolean checkDeadline() {
+        long now = System.currentTimeMillis();
+        if (deadlineMs <= 0 || now <= getDeadline())
+            return false;
+        if (job_id != null) {
+            try {
+                client.abortJob(id(), authToken);
+            } catch (Exception e) {
+                e.printStackTrace();
+                client.getMetrics().onError("abort", e);
+                // Still running on Bobik as far as we know
+                resumable = true;
+            }
+        }
+        fail(new BobikException("Missed its deadline of " + deadlineMs + "ms" + (job_id != null ? "; job " + id() + " was aborted" : "")));
+        return true;
+    }
+
+    /**
+     * Blocks until this job completes, for at most the client's timeout since the job was submitted.
+     * Timing out only gives up on waiting; the job itself keeps running and being monitored.
+     * @throws BobikException if the job failed, or didn't complete in time
+     */
+    @Override
+    public void waitForCompletion() throws BobikException {
+        try {
+            long waitMs = startTime + client.getTimeoutMs() - System.currentTimeMillis();
+            if (!completion.await(Math.max(0, waitMs), TimeUnit.MILLISECONDS))
+                throw new BobikException("Timing out after " + client.getTimeoutMs() + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BobikException("Interrupted while waiting for job " + id(), e);
+        }
+        if (failure != null)
+            throw new BobikException("Job " + id() + " failed", failure);
+    }
+
+
+    /**
+     * Queues up every callback for delivery to the job's listener.
+     * Errors are only reported the first time they're seen, since Bobik repeats them in every status response,
+     * and callbacks made once the job has finished or been cancelled are dropped.
+     */
+    private class DispatchingListener extends JobListener {
+        private final Set<String> reported_errors = new HashSet<String>();
+        private boolean succeeded = false;
+
+        @Override
+        public void onSuccess(final JSONObject scraped_data) {
+            synchronized (this) {
+                if (succeeded || finished || cancelled)
+                    return;
+                succeeded = true;
+            }
+            dispatchQueue.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSuccess(scraped_data);
+                }
+            });
+        }
+
+        @Override
+        public void onProgress(final float currentProgress) {
+            if (finished || cancelled)
+                return;
+            dispatchQueue.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onProgress(currentProgress);
+                }
+            });
+        }
+
+        @Override
+        public void onPartialResults(final JSONObject partial_data) {
+            if (finished || cancelled)
+                return;
+            dispatchQueue.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPartialResults(partial_data);
+                }
+            });
+        }
+
+        @Override
+        public void onErrors(Collection<String> errors) {
+            if (finished || cancelled)
+                return;
+            final List<String> fresh = new ArrayList<String>();
+            synchronized (this) {
+                for (String error : errors) {
+                    if (reported_errors.add(error))
+                        fresh.add(error);
+                }
+            }
+            if (fresh.isEmpty())
+                return;
+            dispatchQueue.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onErrors(fresh);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package bobik;
+
+/**
+ * Receives measurements from a BobikClient: every HTTP call it makes and every job it monitors.
+ * Install one with {@link BobikClient#setMetrics(BobikMetrics)}.
+ * Callbacks are made on the client's I/O and dispatch threads, so implementations must be thread-safe and fast.
+ * All callbacks do nothing unless overridden.
+ * @see InMemoryBobikMetrics
+ */
+public abstract class BobikMetrics {
+
+    /**
+     * Called once an HTTP call is over, i.e. when its response has been read or discarded
+     * @param httpMethod GET/POST
+     * @param statusCode HTTP status code, or -1 if no response was received
+     * @param bytesOut size of the request body, or of the query string for GET requests
+     * @param bytesIn size of the response body
+     * @param latencyMs time from sending the request to the end of the response
+     */
+    public void onHttpCall(String httpMethod, int statusCode, long bytesOut, long bytesIn, long latencyMs) {
+    }
+
+    /**
+     * Called for every gzipped request body once it has been compressed, and for every gzipped response body
+     * once it has been decoded. The sizes passed to {@link #onHttpCall} are the compressed ones.
+     * @param httpMethod GET/POST
+     * @param request true for a request body, false for a response body
+     * @param bytes size of the body before compression
+     * @param compressedBytes size of the body as sent over the wire
+     */
+    public void onCompression(String httpMethod, boolean request, long bytes, long compressedBytes) {
+    }
+
+    /**
+     * Called whenever a status check is handed over to the client's I/O pool
+     * @param queueDepth number of tasks waiting for an I/O thread
+     */
+    public void onQueueDepth(int queueDepth) {
+    }
+
+    /**
+     * Called right before a JobListener callback, completion handler or ResultPublisher signal is delivered on the dispatch executor
+     * @param lagMs time the callback waited in its job's queue since it was made
+     */
+    public void onCallbackDispatched(long lagMs) {
+    }
+
+    /**
+     * Called the first time a job reports progress above 0
+     * @param job_id
+     * @param elapsedMs time since the job was submitted
+     */
+    public void onFirstProgress(String job_id, long elapsedMs) {
+    }
+
+    /**
+     * Called once per job, when it succeeds, fails or is cancelled
+     * @param job_id
+     * @param durationMs time since the job was submitted
+     * @param polls number of status checks made for the job
+     * @param succeeded
+     */
+    public void onJobFinished(String job_id, long durationMs, int polls, boolean succeeded) {
+    }
+
+    /**
+     * Called on every failure of a Bobik operation
+     * @param operation what was being done, e.g. "submit", "status", "results" or "abort"
+     * @param e
+     */
+    public void onError(String operation, Exception e) {
+    }
+}
@@ -0,0 +1,507 @@
+package bobik;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A scraping request too large for a single job, split into shards that run as jobs of their own.
+ * At most {@link BulkScrapeOptions#getMaxParallelShards()} shards are in flight at any time; the next one
+ * is submitted as soon as a running one finishes. A failed shard is resubmitted on its own, without
+ * touching the shards that already succeeded.
+ * <br><br>
+ * The listener sees the bulk job as if it were a single job:
+ * <ul>
+ * <li><i>onProgress</i> reports progress across all shards, weighted by their number of urls. It never goes back:
+ * a retried shard counts with the progress of its last attempt until the new one gets further.</li>
+ * <li><i>onErrors</i> receives the errors of every shard, each prefixed with the shard it came from</li>
+ * <li><i>onPartialResults</i> receives the results of each shard as soon as it completes</li>
+ * <li><i>onSuccess</i> receives the results of all shards merged into one object
+ * (an empty object for a {@link StreamingJobListener}, whose records are forwarded as they are read)</li>
+ * </ul>
+ * Like those of a single job, the callbacks are delivered one at a time, in order, on the client's dispatch executor.
+ * Records for a StreamingJobListener are handed over on the I/O thread reading them, one shard at a time.
+ * <br><br>
+ * If a shard is still failing after {@link BulkScrapeOptions#getMaxShardAttempts()} attempts, the bulk job fails
+ * once all other shards are done. Results of the shards that succeeded remain available through {@link #getResults()}.
+ * @author Eugene Mirkin
+ */
+public class BulkJob implements Job {
+
+    private final BobikClient client;
+    private final JobListener listener;
+    private final JSONArray queries;
+    private final BulkScrapeOptions options;
+
+    /*
+     * Urls of every shard, and the state of its current attempt
+     */
+    private final List<List<String>> shard_urls;
+    private final Job[] shards;
+    private final float[] shard_progress;
+    private final int[] attempts;
+    private final int total_urls;
+
+    /*
+     * Scheduling state, guarded by this
+     */
+    private int next_shard = 0;
+    private int running = 0;
+    private int finished_shards = 0;
+    private final Map<Integer, Exception> failures = new TreeMap<Integer, Exception>();
+    private ScrapeRequest shard_template = null;
+
+    private final JSONObject merged = new JSONObject();
+    private volatile boolean cancelled = false;
+    private volatile Exception failure = null;
+
+    /*
+     * Delivers calls to the user's listener, which are made from several shards at once, one at a time
+     */
+    private final CallbackQueue callbacks;
+
+    /*
+     * Held while a record is handed to a StreamingJobListener
+     */
+    private final Object records = new Object();
+
+    private final CountDownLatch completion = new CountDownLatch(1);
+    private List<JobCompletionHandler> completionHandlers = new ArrayList<JobCompletionHandler>();
+
+    BulkJob(BobikClient client, List<String> urls, Collection<String> queries, BulkScrapeOptions options, JobListener listener) {
+        this.client = client;
+        this.listener = listener;
+        this.queries = new JSONArray(queries);
+        this.options = options;
+        this.callbacks = new CallbackQueue(client);
+        int shard_size = options.getShardSize();
+        shard_urls = new ArrayList<List<String>>((urls.size() + shard_size - 1) / shard_size);
+        for (int from=0; from<urls.size(); from+=shard_size)
+            shard_urls.add(new ArrayList<String>(urls.subList(from, Math.min(urls.size(), from + shard_size))));
+        shards = new Job[shard_urls.size()];
+        shard_progress = new float[shard_urls.size()];
+        attempts = new int[shard_urls.size()];
+        total_urls = urls.size();
+    }
+
+    /**
+     * Submits the first batch of shards. The rest are submitted as running ones finish.
+     */
+    void start() {
+        if (shards.length == 0) {
+            finish();
+            return;
+        }
+        submitNextShards();
+    }
+
+    /**
+     * Fills up free slots with shards that haven't been started yet
+     */
+    private void submitNextShards() {
+        while (true) {
+            int shard;
+            synchronized (this) {
+                if (cancelled || next_shard >= shards.length || running >= options.getMaxParallelShards())
+                    return;
+                shard = next_shard++;
+                running++;
+            }
+            submitShard(shard);
+        }
+    }
+
+    /**
+     * Starts one attempt at a shard. Failed submissions count as failed attempts.
+     * @param shard
+     */
+    private void submitShard(final int shard) {
+        synchronized (this) {
+            attempts[shard]++;
+        }
+        Job job;
+        try {
+            ShardListener relay = new ShardListener(shard);
+            job = client.scrape(getShardRequest(shard), listener instanceof StreamingJobListener ? new StreamingShardListener(relay) : relay);
+        } catch (Exception e) {
+            e.printStackTrace();
+            shardFinished(shard, e);
+            return;
+        }
+        synchronized (this) {
+            shards[shard] = job;
+        }
+        job.whenComplete(new JobCompletionHandler() {
+            @Override
+            public void onComplete(Job job, JSONObject scraped_data, Exception failure) {
+                shardFinished(shard, failure);
+            }
+        });
+    }
+
+    /**
+     * @param shard
+     * @return request for the shard. The options and queries shared by all shards are only serialized once.
+     * @throws JSONException
+     */
+    private synchronized ScrapeRequest getShardRequest(int shard) throws JSONException {
+        if (shard_template == null) {
+            JSONObject request = new JSONObject();
+            JSONObject template = options.getRequestTemplate();
+            for (Iterator<?> i=template.keys(); i.hasNext(); ) {
+                String key = (String)i.next();
+                if (!key.equals(BobikConstants.URLS_TOKEN_LABEL))
+                    request.put(key, template.get(key));
+            }
+            request.put(BobikConstants.QUERIES_TOKEN_LABEL, queries);
+            shard_template = ScrapeRequest.fromJSONObject(request).withPriority(options.getPriority());
+        }
+        return shard_template.withUrls(shard_urls.get(shard));
+    }
+
+    /**
+     * Called once an attempt at a shard is over. Retries the shard if it failed and has attempts left,
+     * otherwise frees its slot for the next shard.
+     * @param shard
+     * @param failure null if the shard succeeded
+     */
+    private void shardFinished(int shard, Exception failure) {
+        boolean retry = false;
+        boolean done;
+        synchronized (this) {
+            if (failure != null && !cancelled && !(failure instanceof CancellationException)
+                    && attempts[shard] < options.getMaxShardAttempts()) {
+                // The shard's progress so far still counts, until the new attempt gets further
+                retry = true;
+            } else {
+                if (failure != null)
+                    failures.put(shard, failure);
+                running--;
+                finished_shards++;
+            }
+            done = finished_shards == shards.length || (cancelled && running == 0);
+        }
+        if (retry) {
+            submitShard(shard);
+            return;
+        }
+        if (done)
+            finish();
+        else
+            submitNextShards();
+    }
+
+    /**
+     * @param shard
+     * @param progress reported by the shard's current attempt
+     */
+    private synchronized void updateProgress(int shard, float progress) {
+        shard_progress[shard] = Math.max(shard_progress[shard], progress);
+    }
+
+    private void mergeResults(JSONObject scraped_data) throws JSONException {
+        synchronized (merged) {
+            for (Iterator<?> i=scraped_data.keys(); i.hasNext(); ) {
+                String key = (String)i.next();
+                merged.put(key, scraped_data.get(key));
+            }
+        }
+    }
+
+    /**
+     * Settles the outcome of the bulk job, notifies the listener and calls completion handlers, exactly once
+     */
+    private void finish() {
+        List<JobCompletionHandler> handlers;
+        synchronized (this) {
+            if (completionHandlers == null)
+                return;
+            handlers = completionHandlers;
+            completionHandlers = null;
+            if (!cancelled && !failures.isEmpty())
+                failure = new BobikException(failures.size() + " of " + shards.length + " shards failed: shards " + failures.keySet());
+        }
+        final List<JobCompletionHandler> waiting = handlers;
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!cancelled && failure == null)
+                    listener.onSuccess(listener instanceof StreamingJobListener ? new JSONObject() : merged);
+                completion.countDown();
+                for (JobCompletionHandler handler : waiting)
+                    notifyHandler(handler);
+            }
+        });
+    }
+
+    private void notifyHandler(JobCompletionHandler handler) {
+        try {
+            if (cancelled)
+                handler.onComplete(this, null, new CancellationException("Bulk job " + id() + " was cancelled"));
+            else
+                handler.onComplete(this, failure == null ? merged : null, failure);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return number of shards the urls were split into
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard
+     * @return the latest attempt at the given shard, or null if it hasn't been submitted yet
+     */
+    public synchronized Job getShard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * @param shard
+     * @return urls scraped by the given shard
+     */
+    public List<String> getShardUrls(int shard) {
+        return Collections.unmodifiableList(shard_urls.get(shard));
+    }
+
+    /**
+     * @return the last failure of every shard that ran out of attempts, keyed by shard number
+     */
+    public synchronized Map<Integer, Exception> getShardFailures() {
+        return new TreeMap<Integer, Exception>(failures);
+    }
+
+    /**
+     * @return results of all shards that have succeeded so far, merged into one object.
+     * Always empty for a {@link StreamingJobListener}.
+     */
+    public JSONObject getResults() {
+        return merged;
+    }
+
+    /**
+     * @return ids of all shard jobs submitted so far, comma-separated
+     */
+    @Override
+    public synchronized String id() {
+        StringBuilder ids = new StringBuilder();
+        for (Job shard : shards) {
+            if (shard != null && shard.id() != null) {
+                if (ids.length() > 0)
+                    ids.append(',');
+                ids.append(shard.id());
+            }
+        }
+        return ids.toString();
+    }
+
+    /**
+     * Unlike a single job, a bulk job reports the progress last seen by its shards without calling Bobik
+     * @return progress across all shards, weighted by their number of urls
+     */
+    @Override
+    public synchronized float getProgress() {
+        if (total_urls == 0)
+            return 1;
+        float done = 0;
+        for (int s=0; s<shards.length; s++)
+            done += shard_progress[s] * shard_urls.get(s).size();
+        return done / total_urls;
+    }
+
+    @Override
+    public void whenComplete(JobCompletionHandler handler) {
+        synchronized (this) {
+            if (completionHandlers != null) {
+                completionHandlers.add(handler);
+                return;
+            }
+        }
+        notifyHandler(handler);
+    }
+
+    /**
+     * Stops submitting shards and aborts the ones in flight
+     */
+    @Override
+    public boolean cancel(boolean b) {
+        List<Job> in_flight = new ArrayList<Job>();
+        synchronized (this) {
+            if (completionHandlers == null)
+                return false;
+            cancelled = true;
+            for (Job shard : shards) {
+                if (shard != null && !shard.isCancelled())
+                    in_flight.add(shard);
+            }
+        }
+        for (Job shard : in_flight)
+            shard.cancel(b);
+        finish();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return completion.getCount() == 0;
+    }
+
+    @Override
+    public JSONObject get() throws InterruptedException, ExecutionException {
+        completion.await();
+        return getOutcome();
+    }
+
+    @Override
+    public JSONObject get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!completion.await(l, timeUnit))
+            throw new TimeoutException("Bulk job did not complete within " + timeUnit.toMillis(l) + "ms");
+        return getOutcome();
+    }
+
+    private JSONObject getOutcome() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException("Bulk job " + id() + " was cancelled");
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return merged;
+    }
+
+    @Override
+    public void waitForCompletion() throws BobikException {
+        try {
+            completion.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BobikException("Interrupted while waiting for bulk job " + id(), e);
+        }
+        if (cancelled)
+            throw new CancellationException("Bulk job " + id() + " was cancelled");
+        if (failure != null)
+            throw (BobikException)failure;
+    }
+
+
+    /**
+     * Relays the callbacks of a single shard to the listener of the bulk job
+     */
+    private class ShardListener extends JobListener {
+        private final int shard;
+
+        ShardListener(int shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        public void onSuccess(final JSONObject scraped_data) {
+            try {
+                mergeResults(scraped_data);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPartialResults(scraped_data);
+                }
+            });
+        }
+
+        @Override
+        public void onProgress(float currentProgress) {
+            updateProgress(shard, currentProgress);
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Read on delivery, so that progress reaches the listener in order however shards race to report it
+                    listener.onProgress(getProgress());
+                }
+            });
+        }
+
+        @Override
+        public void onErrors(Collection<String> errors) {
+            final List<String> attributed = new ArrayList<String>(errors.size());
+            for (String error : errors)
+                attributed.add("Shard " + shard + ": " + error);
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onErrors(attributed);
+                }
+            });
+        }
+    }
+
+    /**
+     * Relays the records of a single shard as they are read, when the bulk job has a StreamingJobListener
+     */
+    private class StreamingShardListener extends StreamingJobListener {
+        private final ShardListener relay;
+
+        StreamingShardListener(ShardListener relay) {
+            this.relay = relay;
+        }
+
+        /*
+         * Whether the callbacks queued before this shard's first record have been delivered.
+         * Only touched by the thread reading the shard's results.
+         */
+        private boolean caught_up = false;
+
+        /**
+         * Hands the record over on the thread reading it rather than queueing it up, so that a slow listener holds
+         * back the read instead of piling records up in memory. Shards streaming at the same time take turns.
+         */
+        @Override
+        public void onResultRecord(String key, Object record) {
+            if (!caught_up) {
+                try {
+                    callbacks.awaitDelivery();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                caught_up = true;
+            }
+            synchronized (records) {
+                ((StreamingJobListener)listener).onResultRecord(key, record);
+            }
+        }
+
+        @Override
+        public void onSuccess(JSONObject scraped_data) {
+        }
+
+        @Override
+        public void onProgress(float currentProgress) {
+            relay.onProgress(currentProgress);
+        }
+
+        @Override
+        public void onErrors(Collection<String> errors) {
+            relay.onErrors(errors);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package bobik;
+
+import org.json.JSONObject;
+
+/**
+ * Controls how {@link BobikClient#scrapeBulk} splits a large request into jobs
+ * @author Eugene Mirkin
+ */
+public class BulkScrapeOptions {
+
+    private int shardSize = 1000;
+    private int maxParallelShards = 4;
+    private int maxShardAttempts = 2;
+    private JSONObject requestTemplate = new JSONObject();
+    private BobikClient.Priority priority = BobikClient.Priority.NORMAL;
+
+    public int getShardSize() {
+        return shardSize;
+    }
+    /**
+     * @param shardSize max number of urls per job
+     */
+    public BulkScrapeOptions setShardSize(int shardSize) {
+        this.shardSize = Math.max(1, shardSize);
+        return this;
+    }
+    public int getMaxParallelShards() {
+        return maxParallelShards;
+    }
+    /**
+     * @param maxParallelShards max number of jobs running at the same time
+     */
+    public BulkScrapeOptions setMaxParallelShards(int maxParallelShards) {
+        this.maxParallelShards = Math.max(1, maxParallelShards);
+        return this;
+    }
+    public int getMaxShardAttempts() {
+        return maxShardAttempts;
+    }
+    /**
+     * @param maxShardAttempts a failed shard is resubmitted on its own until it has been tried this many times
+     */
+    public BulkScrapeOptions setMaxShardAttempts(int maxShardAttempts) {
+        this.maxShardAttempts = Math.max(1, maxShardAttempts);
+        return this;
+    }
+    public JSONObject getRequestTemplate() {
+        return requestTemplate;
+    }
+    /**
+     * @param requestTemplate extra fields (e.g. query_sets) copied into the request of every shard
+     */
+    public BulkScrapeOptions setRequestTemplate(JSONObject requestTemplate) {
+        this.requestTemplate = requestTemplate == null ? new JSONObject() : requestTemplate;
+        return this;
+    }
+    public BobikClient.Priority getPriority() {
+        return priority;
+    }
+    /**
+     * @param priority of every shard. Use LOW to keep a large crawl from holding up other jobs.
+     */
+    public BulkScrapeOptions setPriority(BobikClient.Priority priority) {
+        this.priority = priority == null ? BobikClient.Priority.NORMAL : priority;
+        return this;
+    }
+}
@@ -0,0 +1,124 @@
+package bobik;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delivers the callbacks of a single job (or the signals of a ResultPublisher) on the client's dispatch executor,
+ * one at a time and in the order they were made. Queues take turns on the executor, so one job's slow listener
+ * never holds up the others, nor the I/O threads that made the calls.
+ * <br><br>
+ * At most {@link #BATCH_SIZE} callbacks are delivered in a row before the queue goes to the back of the executor's line.
+ * If the executor rejects the queue (e.g. once the client is closed), callbacks are delivered on the calling thread instead.
+ * @author Eugene Mirkin
+ */
+class CallbackQueue implements Executor {
+
+    static final int BATCH_SIZE = 16;
+
+    /*
+     * Queue whose callback is running on the current thread, if any
+     */
+    private static final ThreadLocal<CallbackQueue> delivering = new ThreadLocal<CallbackQueue>();
+
+    private final BobikClient client;
+
+    /*
+     * Callbacks waiting to be delivered, and whether a drain is scheduled or running. Guarded by this.
+     */
+    private final Queue<Callback> queue = new LinkedList<Callback>();
+    private boolean draining = false;
+
+    CallbackQueue(BobikClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Queues up a callback
+     * @param callback
+     */
+    @Override
+    public void execute(Runnable callback) {
+        synchronized (this) {
+            queue.add(new Callback(callback, System.nanoTime()));
+            if (draining)
+                return;
+            draining = true;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        try {
+            client.getDispatchExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(BATCH_SIZE);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            drain(Integer.MAX_VALUE);
+        }
+    }
+
+    private void drain(int max) {
+        for (int delivered=0; ; delivered++) {
+            Callback callback;
+            synchronized (this) {
+                if (delivered >= max) {
+                    // Still draining; make way for other jobs and pick up from here on the next turn
+                    break;
+                }
+                callback = queue.poll();
+                if (callback == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            client.getMetrics().onCallbackDispatched((System.nanoTime() - callback.queuedAt) / 1000000);
+            CallbackQueue outer = delivering.get();
+            delivering.set(this);
+            try {
+                callback.runnable.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                delivering.set(outer);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Waits until every callback queued so far has been delivered.
+     * Returns right away when called from one of this queue's own callbacks (e.g. a listener checking on its own job),
+     * since everything queued before that callback has been delivered already and waiting for it would never end.
+     * @throws InterruptedException
+     */
+    void awaitDelivery() throws InterruptedException {
+        if (delivering.get() == this)
+            return;
+        final CountDownLatch delivered = new CountDownLatch(1);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                delivered.countDown();
+            }
+        });
+        delivered.await();
+    }
+
+
+    private static class Callback {
+        final Runnable runnable;
+        final long queuedAt;
+
+        Callback(Runnable runnable, long queuedAt) {
+            this.runnable = runnable;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
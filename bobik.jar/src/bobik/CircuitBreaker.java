@@ -0,0 +1,100 @@
+package bobik;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sheds load when the Bobik API is degraded.
+ * After a run of consecutive failures the circuit opens and calls fail fast without reaching the network.
+ * Once openDurationMs has passed, a single trial call is let through: if it succeeds the circuit closes again,
+ * otherwise it stays open for another period.
+ * Only network errors, 429 and 5xx responses count as failures; with an AuthTokenPool, a 429 only concerns the token
+ * it was sent with and doesn't count.
+ * @author Eugene Mirkin
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private int failureThreshold = 5;
+    private long openDurationMs = 30000;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+
+    /**
+     * @throws BobikException if the circuit is open and the call must not be made
+     */
+    synchronized void acquire() throws BobikException {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openDurationMs) {
+                shortCircuited.incrementAndGet();
+                throw new BobikException("Bobik API is failing, not calling it for up to " + openDurationMs + "ms");
+            }
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                shortCircuited.incrementAndGet();
+                throw new BobikException("Bobik API is failing, waiting for a trial call to succeed");
+            }
+            trialInFlight = true;
+        }
+    }
+
+    synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN)
+                opened.incrementAndGet();
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+    /**
+     * @param failureThreshold consecutive failures that open the circuit
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+    public long getOpenDurationMs() {
+        return openDurationMs;
+    }
+    /**
+     * @param openDurationMs how long calls fail fast before a trial call is let through
+     */
+    public void setOpenDurationMs(long openDurationMs) {
+        this.openDurationMs = openDurationMs;
+    }
+    /**
+     * @return number of times the circuit has opened
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+    /**
+     * @return calls that failed fast because the circuit was open
+     */
+    public long getShortCircuited() {
+        return shortCircuited.get();
+    }
+}
@@ -0,0 +1,116 @@
+package bobik;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Wraps a gzip-encoded response entity to decode its body on the fly, as it is read.
+ * Reports the size of the body before and after decoding once it has been read or closed.
+ * @author Eugene Mirkin
+ */
+class GzipEntity extends HttpEntityWrapper {
+
+    private final BobikMetrics metrics;
+    private final String httpMethod;
+    private boolean reported = false;
+
+    GzipEntity(HttpEntity entity, BobikMetrics metrics, String httpMethod) {
+        super(entity);
+        this.metrics = metrics;
+        this.httpMethod = httpMethod;
+    }
+
+    /**
+     * @param entity
+     * @return true if the entity's body is gzip-encoded
+     */
+    static boolean isGzipped(HttpEntity entity) {
+        Header encoding = entity.getContentEncoding();
+        return encoding != null && encoding.getValue().toLowerCase().contains("gzip");
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        final CountingInputStream compressed = new CountingInputStream(super.getContent());
+        return new CountingInputStream(new GZIPInputStream(compressed, 8192)) {
+            @Override
+            protected void done() {
+                report(getCount(), compressed.getCount());
+            }
+        };
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    private synchronized void report(long bytes, long compressedBytes) {
+        if (reported)
+            return;
+        reported = true;
+        metrics.onCompression(httpMethod, false, bytes, compressedBytes);
+    }
+
+
+    /**
+     * Counts the bytes read through it
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * Called when the end of the stream is reached or the stream is closed
+         */
+        protected void done() {
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1)
+                done();
+            else
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n == -1)
+                done();
+            else
+                count += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                done();
+            }
+        }
+    }
+}
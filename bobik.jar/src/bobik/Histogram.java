@@ -0,0 +1,74 @@
+package bobik;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with power-of-two buckets.
+ * Recording a value costs a couple of atomic increments; percentiles are approximate
+ * (reported as the upper bound of the bucket they fall in).
+ * @author Eugene Mirkin
+ */
+public class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        // bucket b holds values in [2^b, 2^(b+1)), except bucket 0 which also holds 0
+        buckets.incrementAndGet(value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+            ;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @return approximate value below which the given fraction of recorded values fall
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = (long)Math.ceil(percentile * n);
+        long seen = 0;
+        for (int b=0; b<64; b++) {
+            seen += buckets.get(b);
+            if (seen >= rank)
+                return Math.min(max.get(), b == 63 ? Long.MAX_VALUE : (1L << (b + 1)) - 1);
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + Math.round(getMean()) + " p50=" + getPercentile(0.5)
+                + " p99=" + getPercentile(0.99) + " max=" + getMax();
+    }
+}
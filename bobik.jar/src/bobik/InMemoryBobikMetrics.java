@@ -0,0 +1,169 @@
+package bobik;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default BobikMetrics implementation. Keeps counters and histograms in memory,
+ * to be read (e.g. by a monitoring endpoint) through the getters or {@link #toString()}.
+ * Recording is lock-free.
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    InMemoryBobikMetrics metrics = new InMemoryBobikMetrics();
+    bobik.setMetrics(metrics);
+    ...
+    System.out.println(metrics);
+ * }
+ * </pre>
+ */
+public class InMemoryBobikMetrics extends BobikMetrics {
+
+    private final Histogram httpLatencyMs = new Histogram();
+    private final Histogram queueDepth = new Histogram();
+    private final Histogram dispatchLagMs = new Histogram();
+    private final Histogram timeToFirstProgressMs = new Histogram();
+    private final Histogram jobDurationMs = new Histogram();
+    private final Histogram pollsPerJob = new Histogram();
+
+    private final AtomicLong httpCalls = new AtomicLong();
+    private final AtomicLong httpFailures = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong uncompressedBytesOut = new AtomicLong();
+    private final AtomicLong compressedBytesOut = new AtomicLong();
+    private final AtomicLong uncompressedBytesIn = new AtomicLong();
+    private final AtomicLong compressedBytesIn = new AtomicLong();
+    private final AtomicLong jobsSucceeded = new AtomicLong();
+    private final AtomicLong jobsFailed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    @Override
+    public void onHttpCall(String httpMethod, int statusCode, long bytesOut, long bytesIn, long latencyMs) {
+        httpCalls.incrementAndGet();
+        if (statusCode < 200 || statusCode >= 300)
+            httpFailures.incrementAndGet();
+        this.bytesOut.addAndGet(bytesOut);
+        this.bytesIn.addAndGet(bytesIn);
+        httpLatencyMs.record(latencyMs);
+    }
+
+    @Override
+    public void onCompression(String httpMethod, boolean request, long bytes, long compressedBytes) {
+        (request ? uncompressedBytesOut : uncompressedBytesIn).addAndGet(bytes);
+        (request ? compressedBytesOut : compressedBytesIn).addAndGet(compressedBytes);
+    }
+
+    @Override
+    public void onQueueDepth(int queueDepth) {
+        this.queueDepth.record(queueDepth);
+    }
+
+    @Override
+    public void onCallbackDispatched(long lagMs) {
+        dispatchLagMs.record(lagMs);
+    }
+
+    @Override
+    public void onFirstProgress(String job_id, long elapsedMs) {
+        timeToFirstProgressMs.record(elapsedMs);
+    }
+
+    @Override
+    public void onJobFinished(String job_id, long durationMs, int polls, boolean succeeded) {
+        (succeeded ? jobsSucceeded : jobsFailed).incrementAndGet();
+        jobDurationMs.record(durationMs);
+        pollsPerJob.record(polls);
+    }
+
+    @Override
+    public void onError(String operation, Exception e) {
+        errors.incrementAndGet();
+    }
+
+    public Histogram getHttpLatencyMs() {
+        return httpLatencyMs;
+    }
+    public Histogram getQueueDepth() {
+        return queueDepth;
+    }
+    /**
+     * @return time listener callbacks waited to be delivered
+     */
+    public Histogram getDispatchLagMs() {
+        return dispatchLagMs;
+    }
+    public Histogram getTimeToFirstProgressMs() {
+        return timeToFirstProgressMs;
+    }
+    public Histogram getJobDurationMs() {
+        return jobDurationMs;
+    }
+    public Histogram getPollsPerJob() {
+        return pollsPerJob;
+    }
+    public long getHttpCalls() {
+        return httpCalls.get();
+    }
+    /**
+     * @return calls that got no response or a non-2xx one
+     */
+    public long getHttpFailures() {
+        return httpFailures.get();
+    }
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+    /**
+     * @return size of gzipped request bodies before compression
+     */
+    public long getUncompressedBytesOut() {
+        return uncompressedBytesOut.get();
+    }
+    /**
+     * @return size of gzipped request bodies after compression
+     */
+    public long getCompressedBytesOut() {
+        return compressedBytesOut.get();
+    }
+    /**
+     * @return size of gzipped response bodies after decoding
+     */
+    public long getUncompressedBytesIn() {
+        return uncompressedBytesIn.get();
+    }
+    /**
+     * @return size of gzipped response bodies as received
+     */
+    public long getCompressedBytesIn() {
+        return compressedBytesIn.get();
+    }
+    public long getJobsSucceeded() {
+        return jobsSucceeded.get();
+    }
+    /**
+     * @return jobs that failed or were cancelled
+     */
+    public long getJobsFailed() {
+        return jobsFailed.get();
+    }
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public String toString() {
+        return "http calls: " + httpCalls + " (" + httpFailures + " failed), bytes out: " + bytesOut + ", bytes in: " + bytesIn + "\n"
+                + "gzip out: " + uncompressedBytesOut + " -> " + compressedBytesOut + " bytes, gzip in: " + compressedBytesIn + " -> " + uncompressedBytesIn + " bytes\n"
+                + "http latency ms: " + httpLatencyMs + "\n"
+                + "io queue depth: " + queueDepth + "\n"
+                + "callback dispatch lag ms: " + dispatchLagMs + "\n"
+                + "jobs: " + jobsSucceeded + " succeeded, " + jobsFailed + " failed, errors: " + errors + "\n"
+                + "time to first progress ms: " + timeToFirstProgressMs + "\n"
+                + "job duration ms: " + jobDurationMs + "\n"
+                + "polls per job: " + pollsPerJob;
+    }
+}
@@ -20,14 +20,24 @@ public interface Job extends Future<JSONObject> {
     public float getProgress() throws BobikException;
 
     /**
-     * @return job_id
+     * @return job_id, or null if the job is still waiting to be submitted or was served entirely from the result cache
      */
     public String id();
 
     /**
-     * Blocks until this job completes
+     * Blocks until this job completes, or until the client's timeout has passed since the job was submitted.
+     * Timing out doesn't stop the job; use {@link #get(long, java.util.concurrent.TimeUnit)} to wait for longer.
      * @throws BobikException
      */
     public void waitForCompletion() throws BobikException;
 
+    /**
+     * Registers a callback to be made once this job succeeds, fails or is cancelled, without blocking
+     * any thread in the meantime. Use it to chain further processing of the results.
+     * If the job is already finished, the handler is called right away on the calling thread.
+     * Otherwise, it is called on the client's dispatch executor, once the job's listener has received all its callbacks.
+     * @param handler
+     */
+    public void whenComplete(JobCompletionHandler handler);
+
 }
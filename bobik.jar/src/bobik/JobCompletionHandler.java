@@ -0,0 +1,20 @@
+package bobik;
+
+import org.json.JSONObject;
+
+/**
+ * Callback made once a Bobik job is finished.
+ * Unlike {@link JobListener}, several handlers can be attached to the same job at any time,
+ * including after it has already finished.
+ * @see Job#whenComplete(JobCompletionHandler)
+ */
+public interface JobCompletionHandler {
+
+    /**
+     * Called exactly once, when the job succeeds, fails or is cancelled
+     * @param job the job that finished
+     * @param scraped_data results of the job, or null if it didn't succeed
+     * @param failure reason the job didn't succeed (a CancellationException if it was cancelled), or null on success
+     */
+    public void onComplete(Job job, JSONObject scraped_data, Exception failure);
+}
@@ -0,0 +1,446 @@
+package bobik;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A write-ahead log of the jobs submitted by a client, so that jobs still running on Bobik can be picked up again
+ * after a restart (see {@link BobikClient#resume()}) rather than submitted and paid for twice.
+ * <br><br>
+ * Every job is journalled before it is sent to Bobik, along with its request, priority and deadline,
+ * then again once Bobik hands out its id, and, as it runs, with its progress whenever it has moved by 5% or more.
+ * Finished jobs (successful, failed or cancelled) are marked as such. A job the client merely stopped monitoring
+ * (e.g. after too many failed status checks) is left in the journal, since it may still be running on Bobik.
+ * Entries are appended one JSON object per line. The file is compacted down to unfinished jobs whenever it is opened,
+ * and again every 10000 lines or so, so that it doesn't grow for as long as the client runs.
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    BobikClient bobik = new BobikClient("YOUR_AUTH_KEY");
+    bobik.setJobJournal(new JobJournal(new File("bobik-jobs.journal")));
+    for (Job job : bobik.resume())
+        job.whenComplete(handler);
+ * }
+ * </pre>
+ * Auth tokens are never written to the journal. Jobs submitted through an {@link AuthTokenPool} are tagged with a digest
+ * of their token instead, so that they resume with the same one.
+ * @author Eugene Mirkin
+ */
+public class JobJournal implements Closeable {
+
+    private static final String OP = "op";
+    private static final String SUBMITTING = "submitting";
+    private static final String SUBMITTED = "submitted";
+    private static final String PROGRESS = "progress";
+    private static final String FINISHED = "finished";
+    private static final String REQUEST = "request";
+    private static final String TIME = "time";
+    private static final String TOKEN_ID = "token_id";
+    private static final String KEY = "key";
+    private static final String PRIORITY = "priority";
+    private static final String DEADLINE = "deadline";
+
+    /*
+     * Progress is only journalled once it has moved this much since it last was
+     */
+    static final float PROGRESS_STEP = 0.05f;
+
+    /*
+     * Compact after this many lines have been appended, unless the compacted journal would be longer than what was appended
+     */
+    static final int COMPACT_AFTER_LINES = 10000;
+
+    private final File file;
+    private final int compactAfterLines;
+    private FileOutputStream stream;
+    private Writer out;
+
+    /*
+     * Lines appended since the journal was last compacted
+     */
+    private int appended = 0;
+
+    /*
+     * Jobs that are about to be or have been submitted, but are not known to have finished, by key in submission order.
+     * Those Bobik has handed out an id for are also indexed by job id.
+     */
+    private final Map<String, Entry> unfinished = new LinkedHashMap<String, Entry>();
+    private final Map<String, Entry> byJobId = new HashMap<String, Entry>();
+
+    /**
+     * Opens a journal, reading back whatever a previous run left behind
+     * @param file created if it doesn't exist
+     * @throws IOException
+     */
+    public JobJournal(File file) throws IOException {
+        this(file, COMPACT_AFTER_LINES);
+    }
+
+    /**
+     * @param file
+     * @param compactAfterLines lines to append between compactions
+     * @throws IOException
+     */
+    JobJournal(File file, int compactAfterLines) throws IOException {
+        this.file = file;
+        this.compactAfterLines = compactAfterLines;
+        if (file.exists())
+            replay();
+        compact();
+    }
+
+    /**
+     * Records a job that is about to be sent to Bobik. Forced to disk before returning.
+     * @param request
+     * @param priority
+     * @param deadline time by which the job must complete, or 0 if it has no deadline
+     * @return key of the journal entry, for {@link #submitted(String, String, String)} or {@link #abandoned(String)}
+     * @throws IOException
+     * @throws JSONException
+     */
+    synchronized String submitting(JSONObject request, BobikClient.Priority priority, long deadline) throws IOException, JSONException {
+        JSONObject safe_request = new JSONObject();
+        for (Iterator<?> i=request.keys(); i.hasNext(); ) {
+            String key = (String)i.next();
+            if (!key.equals(BobikConstants.AUTH_TOKEN_LABEL))
+                safe_request.put(key, request.get(key));
+        }
+        Entry entry = new Entry(UUID.randomUUID().toString(), safe_request, System.currentTimeMillis(), priority, deadline);
+        entry.inFlight = true;
+        unfinished.put(entry.key, entry);
+        JSONObject line = entry.toJSONObject();
+        line.put(OP, SUBMITTING);
+        append(line, true);
+        return entry.key;
+    }
+
+    /**
+     * Records that a job recorded by {@link #submitting(JSONObject, BobikClient.Priority, long)} is being sent again
+     * @param key
+     * @return false if it is already being sent, or is no longer in the journal
+     */
+    synchronized boolean resubmitting(String key) {
+        Entry entry = unfinished.get(key);
+        if (entry == null || entry.inFlight || entry.jobId != null)
+            return false;
+        entry.inFlight = true;
+        return true;
+    }
+
+    /**
+     * Records the id Bobik has just handed out for a job. Forced to disk before returning.
+     * @param key as returned by {@link #submitting(JSONObject, BobikClient.Priority, long)}
+     * @param job_id
+     * @param token_id identifies the pool token the job was submitted with (see {@link AuthTokenPool}), or null
+     * @throws IOException
+     * @throws JSONException
+     */
+    synchronized void submitted(String key, String job_id, String token_id) throws IOException, JSONException {
+        Entry entry = unfinished.get(key);
+        if (entry == null)
+            return;
+        entry.jobId = job_id;
+        entry.tokenId = token_id;
+        entry.inFlight = false;
+        byJobId.put(job_id, entry);
+        JSONObject line = new JSONObject();
+        line.put(OP, SUBMITTED);
+        line.put(KEY, key);
+        line.put(BobikConstants.JOB_TOKEN_LABEL, job_id);
+        if (token_id != null)
+            line.put(TOKEN_ID, token_id);
+        append(line, true);
+    }
+
+    /**
+     * Records that Bobik turned a job down, so there's nothing to resume
+     * @param key as returned by {@link #submitting(JSONObject, BobikClient.Priority, long)}
+     * @throws IOException
+     * @throws JSONException
+     */
+    synchronized void abandoned(String key) throws IOException, JSONException {
+        Entry entry = unfinished.remove(key);
+        if (entry == null)
+            return;
+        if (entry.jobId != null)
+            byJobId.remove(entry.jobId);
+        JSONObject line = new JSONObject();
+        line.put(OP, FINISHED);
+        line.put(KEY, key);
+        append(line, false);
+    }
+
+    /**
+     * Records the latest progress of a job, unless it has barely moved since it was last recorded
+     * @param job_id
+     * @param progress
+     * @throws IOException
+     * @throws JSONException
+     */
+    synchronized void progress(String job_id, float progress) throws IOException, JSONException {
+        Entry entry = byJobId.get(job_id);
+        if (entry == null || Math.abs(progress - entry.progress) < PROGRESS_STEP)
+            return;
+        entry.progress = progress;
+        JSONObject line = new JSONObject();
+        line.put(OP, PROGRESS);
+        line.put(BobikConstants.JOB_TOKEN_LABEL, job_id);
+        line.put(PROGRESS, progress);
+        append(line, false);
+    }
+
+    /**
+     * Records that a job is over. Forced to disk before returning.
+     * @param job_id
+     * @throws IOException
+     * @throws JSONException
+     */
+    synchronized void finished(String job_id) throws IOException, JSONException {
+        Entry entry = byJobId.remove(job_id);
+        if (entry == null)
+            return;
+        unfinished.remove(entry.key);
+        JSONObject line = new JSONObject();
+        line.put(OP, FINISHED);
+        line.put(BobikConstants.JOB_TOKEN_LABEL, job_id);
+        append(line, true);
+    }
+
+    /**
+     * @return jobs submitted, or about to be, but not known to have finished, in submission order.
+     * Jobs Bobik's answer was never journalled for have no id.
+     */
+    public synchronized List<Entry> getUnfinishedJobs() {
+        return new ArrayList<Entry>(unfinished.values());
+    }
+
+    /**
+     * Rewrites the journal so that it only holds unfinished jobs
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        appended = 0;
+        File compacted = new File(file.getPath() + ".tmp");
+        FileOutputStream compacted_stream = new FileOutputStream(compacted);
+        Writer writer = new OutputStreamWriter(compacted_stream, "UTF-8");
+        try {
+            for (Entry entry : unfinished.values()) {
+                JSONObject line = entry.toJSONObject();
+                line.put(OP, SUBMITTING);
+                writer.write(line.toString());
+                writer.write('\n');
+                if (entry.jobId != null && entry.progress > 0) {
+                    JSONObject progress = new JSONObject();
+                    progress.put(OP, PROGRESS);
+                    progress.put(BobikConstants.JOB_TOKEN_LABEL, entry.jobId);
+                    progress.put(PROGRESS, entry.progress);
+                    writer.write(progress.toString());
+                    writer.write('\n');
+                }
+            }
+            writer.flush();
+            compacted_stream.getFD().sync();
+        } catch (JSONException e) {
+            throw new IOException("Can't compact " + file + ": " + e.getMessage());
+        } finally {
+            writer.close();
+        }
+        if (out != null)
+            out.close();
+        if (!compacted.renameTo(file)) {
+            // Some platforms won't rename over an existing file
+            if (!file.delete() || !compacted.renameTo(file))
+                throw new IOException("Can't replace " + file);
+        }
+        stream = new FileOutputStream(file, true);
+        out = new OutputStreamWriter(stream, "UTF-8");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void replay() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                JSONObject line;
+                try {
+                    line = new JSONObject(text);
+                } catch (JSONException e) {
+                    continue;   // a line cut short by a crash
+                }
+                String op = line.optString(OP);
+                String job_id = line.optString(BobikConstants.JOB_TOKEN_LABEL, null);
+                // Journals written before submissions were logged ahead have no keys; their entries are keyed by job id
+                String key = line.optString(KEY, job_id);
+                if (key == null)
+                    continue;
+                if (op.equals(SUBMITTING) || op.equals(SUBMITTED)) {
+                    Entry entry = unfinished.get(key);
+                    if (entry == null) {
+                        if (op.equals(SUBMITTED) && !line.has(REQUEST))
+                            continue;
+                        JSONObject request = line.optJSONObject(REQUEST);
+                        entry = new Entry(key, request == null ? new JSONObject() : request, line.optLong(TIME, 0),
+                                parsePriority(line.optString(PRIORITY, null)), line.optLong(DEADLINE, 0));
+                        unfinished.put(key, entry);
+                    }
+                    if (job_id != null) {
+                        entry.jobId = job_id;
+                        entry.tokenId = line.optString(TOKEN_ID, null);
+                        byJobId.put(job_id, entry);
+                    }
+                } else if (op.equals(PROGRESS)) {
+                    Entry entry = job_id == null ? null : byJobId.get(job_id);
+                    if (entry != null)
+                        entry.progress = (float)line.optDouble(PROGRESS, 0);
+                } else if (op.equals(FINISHED)) {
+                    Entry entry = job_id != null ? byJobId.remove(job_id) : unfinished.get(key);
+                    if (entry != null) {
+                        unfinished.remove(entry.key);
+                        if (entry.jobId != null)
+                            byJobId.remove(entry.jobId);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static BobikClient.Priority parsePriority(String priority) {
+        try {
+            return priority == null ? BobikClient.Priority.NORMAL : BobikClient.Priority.valueOf(priority);
+        } catch (IllegalArgumentException e) {
+            return BobikClient.Priority.NORMAL;
+        }
+    }
+
+    private void append(JSONObject line, boolean force) throws IOException {
+        if (out == null)
+            throw new IOException("JobJournal has been closed");
+        out.write(line.toString());
+        out.write('\n');
+        out.flush();
+        if (force)
+            stream.getFD().sync();
+        if (++appended >= compactAfterLines && appended >= 2 * unfinished.size()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // The line itself made it to disk; try again once as many lines have been appended
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * A job that was submitted, or about to be, but is not known to have finished
+     */
+    public static class Entry {
+        private final String key;
+        private final JSONObject request;
+        private final long submittedAt;
+        private final BobikClient.Priority priority;
+        private final long deadline;
+        private volatile String jobId;
+        private volatile String tokenId;
+        private volatile float progress = 0;
+
+        /*
+         * Whether this client is sending the job to Bobik right now. Guarded by the journal.
+         */
+        private boolean inFlight = false;
+
+        Entry(String key, JSONObject request, long submittedAt, BobikClient.Priority priority, long deadline) {
+            this.key = key;
+            this.request = request;
+            this.submittedAt = submittedAt;
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+
+        String getKey() {
+            return key;
+        }
+        /**
+         * @return id Bobik handed out for the job, or null if its answer to the submission was never journalled
+         */
+        public String getJobId() {
+            return jobId;
+        }
+        /**
+         * @return the request the job was submitted with, minus the auth token
+         */
+        public JSONObject getRequest() {
+            return request;
+        }
+        public long getSubmittedAt() {
+            return submittedAt;
+        }
+        public BobikClient.Priority getPriority() {
+            return priority;
+        }
+        /**
+         * @return time by which the job must complete, or 0 if it has no deadline
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+        /**
+         * @return a digest identifying the pool token the job was submitted with, or null if it wasn't submitted through a pool
+         */
+        public String getTokenId() {
+            return tokenId;
+        }
+        /**
+         * @return progress as of the last journalled status check
+         */
+        public float getProgress() {
+            return progress;
+        }
+
+        JSONObject toJSONObject() throws JSONException {
+            JSONObject line = new JSONObject();
+            line.put(KEY, key);
+            if (jobId != null)
+                line.put(BobikConstants.JOB_TOKEN_LABEL, jobId);
+            line.put(REQUEST, request);
+            line.put(TIME, submittedAt);
+            line.put(PRIORITY, priority.name());
+            if (deadline > 0)
+                line.put(DEADLINE, deadline);
+            if (tokenId != null)
+                line.put(TOKEN_ID, tokenId);
+            return line;
+        }
+    }
+}
@@ -20,6 +20,14 @@ public abstract class JobListener {
      */
     public final void init(Job job) {
         this.job = job;
+        attached(job);
+    }
+
+    /**
+     * Lets listeners that relay callbacks to other listeners pass the job on to them
+     * @param job
+     */
+    void attached(Job job) {
     }
     /**
      * Called when the job is finished and data is scraped
@@ -34,6 +42,16 @@ public abstract class JobListener {
      */
     public abstract void onProgress(float currentProgress);
 
+    /**
+     * Called with results that became available while the job is still running.
+     * Only called if the client has incremental results enabled (see {@link BobikClient#setIncrementalResults(boolean)}).
+     * Every entry of the results is passed here exactly once, the last ones right before <i>onSuccess</i>.
+     * Does nothing unless overridden.
+     * @param partial_data newly available entries, in the same format as the data passed to <i>onSuccess</i>
+     */
+    public void onPartialResults(JSONObject partial_data) {
+    }
+
     /**
      * Called whenever there is an error during job execution.
      * If a successful job contains some errors, this function will be called prior
@@ -0,0 +1,239 @@
+package bobik;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks progress of all jobs started by a BobikClient.
+ * A single scheduler thread keeps the timeline of upcoming status checks and never blocks;
+ * due checks are handed off to the client's I/O pool and each job is rescheduled
+ * as its PollStrategy sees fit.
+ * This way, any number of jobs can be monitored by a handful of threads.
+ * <br><br>
+ * Optionally, status checks that fall due within a short window of each other are coalesced
+ * into a single request covering many jobs (see {@link BobikClient#setStatusBatchWindowMs(long)}).
+ * High-priority jobs are never held back for a batch, and their checks go ahead of everyone else's in the I/O pool's queue.
+ * @author Eugene Mirkin
+ */
+class JobMonitor {
+
+    /*
+     * Set while the current thread is checking on jobs, so that API calls made on their behalf are retried through the scheduler
+     */
+    private static final ThreadLocal<Boolean> checking = new ThreadLocal<Boolean>();
+
+    private final BobikClient client;
+    private final ScheduledExecutorService scheduler;
+    private final PriorityExecutor io;
+
+    /*
+     * Status checks that fall due within this window are sent as one request. 0 disables batching.
+     */
+    private volatile long batchWindowMs = 0;
+
+    /*
+     * Max number of jobs covered by a single batched status check
+     */
+    private volatile int maxBatchSize = 100;
+
+    /*
+     * Jobs being monitored, by id
+     */
+    private final ConcurrentMap<String, BobikJob> monitored = new ConcurrentHashMap<String, BobikJob>();
+
+    /*
+     * Jobs due for a status check, waiting for the current batch window to close
+     */
+    private List<BobikJob> batch = new ArrayList<BobikJob>();
+
+    JobMonitor(BobikClient client, ScheduledExecutorService scheduler, PriorityExecutor io) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.io = io;
+    }
+
+    /**
+     * Starts monitoring a job, unless a job with the same id is monitored already. The first status check happens right away.
+     * @param job
+     * @return the job being monitored under its id: either job, or the one that already was
+     */
+    BobikJob monitor(BobikJob job) {
+        BobikJob existing = monitored.putIfAbsent(job.id(), job);
+        if (existing != null)
+            return existing;
+        schedule(job, 0);
+        return job;
+    }
+
+    /**
+     * @param job_id
+     * @return the job being monitored under the id, or null if there's none
+     */
+    BobikJob getMonitoredJob(String job_id) {
+        return monitored.get(job_id);
+    }
+
+    private void stopMonitoring(BobikJob job, Exception e) {
+        monitored.remove(job.id(), job);
+        job.stopMonitoring(e);
+    }
+
+    private void schedule(final BobikJob job, long delayMs) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    check(job);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            stopMonitoring(job, e);
+        }
+    }
+
+    private void check(final BobikJob job) {
+        if (batchWindowMs <= 0 || job.getPriority() == BobikClient.Priority.HIGH) {
+            checkAll(Collections.singletonList(job));
+            return;
+        }
+        List<BobikJob> full = null;
+        synchronized (this) {
+            batch.add(job);
+            if (batch.size() >= maxBatchSize)
+                full = takeBatch();
+            else if (batch.size() == 1)
+                scheduleFlush();
+        }
+        if (full != null)
+            checkAll(full);
+    }
+
+    private void scheduleFlush() {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    List<BobikJob> due;
+                    synchronized (JobMonitor.this) {
+                        due = takeBatch();
+                    }
+                    if (!due.isEmpty())
+                        checkAll(due);
+                }
+            }, batchWindowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            for (BobikJob job : takeBatch())
+                stopMonitoring(job, e);
+        }
+    }
+
+    private synchronized List<BobikJob> takeBatch() {
+        List<BobikJob> due = batch;
+        batch = new ArrayList<BobikJob>();
+        return due;
+    }
+
+    /**
+     * Checks on a group of jobs with a single request, if there's more than one of them.
+     * Jobs missing from the batched response (or all of them, if the batched request fails)
+     * fall back to checking on their own, unless the batched request is to be retried later,
+     * in which case they are simply rescheduled.
+     * @param jobs
+     */
+    private void checkAll(final List<BobikJob> jobs) {
+        client.getMetrics().onQueueDepth(io.getQueueSize());
+        // A batch is as urgent as its most urgent job
+        BobikClient.Priority priority = BobikClient.Priority.LOW;
+        for (BobikJob job : jobs) {
+            if (job.getPriority().compareTo(priority) < 0)
+                priority = job.getPriority();
+        }
+        try {
+            io.execute(new Runnable() {
+                @Override
+                public void run() {
+                    checking.set(Boolean.TRUE);
+                    try {
+                        checkNow(jobs);
+                    } finally {
+                        checking.remove();
+                    }
+                }
+            }, priority);
+        } catch (RejectedExecutionException e) {
+            for (BobikJob job : jobs)
+                stopMonitoring(job, e);
+        }
+    }
+
+    private void checkNow(List<BobikJob> jobs) {
+        Map<String, JSONObject> statuses = Collections.emptyMap();
+        Map<String, BobikException> retry_later = Collections.emptyMap();
+        if (jobs.size() > 1) {
+            // Jobs can only be checked on together with jobs submitted with the same token
+            Map<String, List<String>> job_ids_by_token = new LinkedHashMap<String, List<String>>();
+            for (BobikJob job : jobs) {
+                List<String> job_ids = job_ids_by_token.get(job.getAuthToken());
+                if (job_ids == null) {
+                    job_ids = new ArrayList<String>();
+                    job_ids_by_token.put(job.getAuthToken(), job_ids);
+                }
+                job_ids.add(job.id());
+            }
+            statuses = new HashMap<String, JSONObject>(jobs.size() * 2);
+            retry_later = new HashMap<String, BobikException>();
+            for (Map.Entry<String, List<String>> group : job_ids_by_token.entrySet()) {
+                if (group.getValue().size() < 2)
+                    continue;
+                try {
+                    statuses.putAll(client.getStatuses(group.getValue(), group.getKey()));
+                } catch (RetryLaterException e) {
+                    for (String job_id : group.getValue())
+                        retry_later.put(job_id, e);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    client.getMetrics().onError("status", e);
+                }
+            }
+        }
+        for (BobikJob job : jobs) {
+            BobikException failure = retry_later.get(job.id());
+            long delay = failure != null ? job.checkFailed(failure) : job.poll(statuses.get(job.id()));
+            if (delay >= 0)
+                schedule(job, delay);
+            else
+                monitored.remove(job.id(), job);
+        }
+    }
+
+    /**
+     * @return whether the calling thread is checking on jobs for a JobMonitor
+     */
+    static boolean isCheckingOnJobs() {
+        return checking.get() != null;
+    }
+
+    long getBatchWindowMs() {
+        return batchWindowMs;
+    }
+    void setBatchWindowMs(long batchWindowMs) {
+        this.batchWindowMs = batchWindowMs;
+    }
+    int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+    void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+}
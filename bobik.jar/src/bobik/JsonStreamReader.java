@@ -0,0 +1,382 @@
+package bobik;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+
+/**
+ * A minimal pull parser for JSON, reading straight from a stream.
+ * Lets callers walk the outer structure of a large document (e.g. a job's results) one entry at a time,
+ * materializing each entry as an org.json value and skipping over anything they're not interested in,
+ * so only one entry has to be held in memory at any point.
+ * @author Eugene Mirkin
+ */
+class JsonStreamReader implements Closeable {
+
+    /*
+     * States of an open object or array
+     */
+    private static final int EMPTY = 0;
+    private static final int NONEMPTY = 1;
+    private static final int READY = 2;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos = 0;
+    private int limit = 0;
+
+    private int[] stack = new int[32];
+    private int depth = 0;
+
+    JsonStreamReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Consumes the opening brace of an object
+     * @throws IOException
+     * @throws JSONException
+     */
+    public void beginObject() throws IOException, JSONException {
+        expect('{');
+        push();
+    }
+
+    /**
+     * Consumes the closing brace of the current object
+     * @throws IOException
+     * @throws JSONException
+     */
+    public void endObject() throws IOException, JSONException {
+        expect('}');
+        pop();
+    }
+
+    /**
+     * Consumes the opening bracket of an array
+     * @throws IOException
+     * @throws JSONException
+     */
+    public void beginArray() throws IOException, JSONException {
+        expect('[');
+        push();
+    }
+
+    /**
+     * Consumes the closing bracket of the current array
+     * @throws IOException
+     * @throws JSONException
+     */
+    public void endArray() throws IOException, JSONException {
+        expect(']');
+        pop();
+    }
+
+    /**
+     * @return true if the current object or array has more elements
+     * @throws IOException
+     * @throws JSONException
+     */
+    public boolean hasNext() throws IOException, JSONException {
+        if (depth == 0)
+            throw new JSONException("Not inside an object or array");
+        int c = peek();
+        if (c == '}' || c == ']')
+            return false;
+        if (stack[depth - 1] == NONEMPTY) {
+            expect(',');
+            stack[depth - 1] = READY;
+        } else if (stack[depth - 1] == EMPTY) {
+            stack[depth - 1] = READY;
+        }
+        return true;
+    }
+
+    /**
+     * Consumes the name of the next member of the current object. Call {@link #hasNext()} first.
+     * @return name
+     * @throws IOException
+     * @throws JSONException
+     */
+    public String nextName() throws IOException, JSONException {
+        expect('"');
+        String name = readString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Looks at the next value without consuming it
+     * @return its first character: '{' for an object, '[' for an array, '"' for a string and so on, or -1 at the end of input
+     * @throws IOException
+     */
+    public int peekValue() throws IOException {
+        return peek();
+    }
+
+    /**
+     * Consumes the next value and materializes it
+     * @return a JSONObject, JSONArray, String, Number, Boolean or JSONObject.NULL
+     * @throws IOException
+     * @throws JSONException
+     */
+    public Object readValue() throws IOException, JSONException {
+        Object value = parseValue();
+        afterValue();
+        return value;
+    }
+
+    /**
+     * Consumes the next value without materializing it
+     * @throws IOException
+     * @throws JSONException
+     */
+    public void skipValue() throws IOException, JSONException {
+        int c = nextClean();
+        if (c == -1) {
+            throw new JSONException("Unexpected end of input");
+        } else if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int nesting = 1;
+            while (nesting > 0) {
+                c = read();
+                if (c == -1)
+                    throw new JSONException("Unterminated value");
+                else if (c == '"')
+                    skipString();
+                else if (c == '{' || c == '[')
+                    nesting++;
+                else if (c == '}' || c == ']')
+                    nesting--;
+            }
+        } else {
+            back();
+            readLiteral();
+        }
+        afterValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void push() {
+        if (depth == stack.length) {
+            int[] bigger = new int[stack.length * 2];
+            System.arraycopy(stack, 0, bigger, 0, stack.length);
+            stack = bigger;
+        }
+        stack[depth++] = EMPTY;
+    }
+
+    private void pop() {
+        depth--;
+        afterValue();
+    }
+
+    private void afterValue() {
+        if (depth > 0)
+            stack[depth - 1] = NONEMPTY;
+    }
+
+    private Object parseValue() throws IOException, JSONException {
+        int c = nextClean();
+        switch (c) {
+            case '{':
+                return parseObject();
+            case '[':
+                return parseArray();
+            case '"':
+                return readString();
+            case -1:
+                throw new JSONException("Unexpected end of input");
+            default:
+                back();
+                return toLiteral(readLiteral());
+        }
+    }
+
+    private JSONObject parseObject() throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        int c = nextClean();
+        if (c == '}')
+            return object;
+        if (c == -1)
+            throw new JSONException("Unexpected end of input");
+        back();
+        while (true) {
+            expect('"');
+            String key = readString();
+            expect(':');
+            object.put(key, parseValue());
+            c = nextClean();
+            if (c == '}')
+                return object;
+            if (c != ',')
+                throw new JSONException("Expected ',' or '}' but found " + describe(c));
+        }
+    }
+
+    private JSONArray parseArray() throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        int c = nextClean();
+        if (c == ']')
+            return array;
+        if (c == -1)
+            throw new JSONException("Unexpected end of input");
+        back();
+        while (true) {
+            array.put(parseValue());
+            c = nextClean();
+            if (c == ']')
+                return array;
+            if (c != ',')
+                throw new JSONException("Expected ',' or ']' but found " + describe(c));
+        }
+    }
+
+    /*
+     * Reads the rest of a string whose opening quote has already been consumed
+     */
+    private String readString() throws IOException, JSONException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = read();
+            switch (c) {
+                case -1:
+                    throw new JSONException("Unterminated string");
+                case '"':
+                    return sb.toString();
+                case '\\':
+                    c = read();
+                    switch (c) {
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'n': sb.append('\n'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'u':
+                            int code = 0;
+                            for (int i=0; i<4; i++) {
+                                int digit = Character.digit(read(), 16);
+                                if (digit < 0)
+                                    throw new JSONException("Invalid unicode escape");
+                                code = (code << 4) + digit;
+                            }
+                            sb.append((char)code);
+                            break;
+                        case -1:
+                            throw new JSONException("Unterminated string");
+                        default:
+                            sb.append((char)c);
+                    }
+                    break;
+                default:
+                    sb.append((char)c);
+            }
+        }
+    }
+
+    private void skipString() throws IOException, JSONException {
+        while (true) {
+            int c = read();
+            if (c == -1)
+                throw new JSONException("Unterminated string");
+            if (c == '"')
+                return;
+            if (c == '\\')
+                read();
+        }
+    }
+
+    private String readLiteral() throws IOException, JSONException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = read();
+            if (c == -1)
+                break;
+            if (c == ',' || c == '}' || c == ']' || c == ':' || Character.isWhitespace(c)) {
+                back();
+                break;
+            }
+            sb.append((char)c);
+        }
+        if (sb.length() == 0)
+            throw new JSONException("Expected a value");
+        return sb.toString();
+    }
+
+    private static Object toLiteral(String literal) throws JSONException {
+        if (literal.equals("true"))
+            return Boolean.TRUE;
+        if (literal.equals("false"))
+            return Boolean.FALSE;
+        if (literal.equals("null"))
+            return JSONObject.NULL;
+        try {
+            if (literal.indexOf('.') >= 0 || literal.indexOf('e') >= 0 || literal.indexOf('E') >= 0)
+                return Double.valueOf(literal);
+            BigInteger big = new BigInteger(literal);
+            // Integers too long for a long are kept whole, as org.json keeps them
+            if (big.bitLength() >= 64)
+                return big;
+            long value = big.longValue();
+            if (value == (int)value)
+                return Integer.valueOf((int)value);
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new JSONException("Invalid value: " + literal);
+        }
+    }
+
+    private void expect(char expected) throws IOException, JSONException {
+        int c = nextClean();
+        if (c != expected)
+            throw new JSONException("Expected '" + expected + "' but found " + describe(c));
+    }
+
+    private int peek() throws IOException {
+        int c = nextClean();
+        if (c != -1)
+            back();
+        return c;
+    }
+
+    private int nextClean() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                return c;
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    /*
+     * Steps back over the character just read. Never called twice in a row.
+     */
+    private void back() {
+        pos--;
+    }
+
+    private static String describe(int c) {
+        return c == -1 ? "end of input" : "'" + (char)c + "'";
+    }
+}
@@ -0,0 +1,77 @@
+package bobik;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Wraps a response entity to report the HTTP call it belongs to once the body has been read or discarded
+ * @author Eugene Mirkin
+ */
+class MeteredEntity extends HttpEntityWrapper {
+
+    private final BobikMetrics metrics;
+    private final String httpMethod;
+    private final int statusCode;
+    private final long bytesOut;
+    private final long startNanos;
+    private boolean reported = false;
+
+    MeteredEntity(HttpEntity entity, BobikMetrics metrics, String httpMethod, int statusCode, long bytesOut, long startNanos) {
+        super(entity);
+        this.metrics = metrics;
+        this.httpMethod = httpMethod;
+        this.statusCode = statusCode;
+        this.bytesOut = bytesOut;
+        this.startNanos = startNanos;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new FilterInputStream(super.getContent()) {
+            private long bytesIn = 0;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1)
+                    report(bytesIn);
+                else
+                    bytesIn++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = super.read(buffer, offset, length);
+                if (count == -1)
+                    report(bytesIn);
+                else
+                    bytesIn += count;
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                report(bytesIn);
+            }
+        };
+    }
+
+    @Override
+    public void consumeContent() throws IOException {
+        super.consumeContent();
+        report(Math.max(0, getContentLength()));
+    }
+
+    private synchronized void report(long bytesIn) {
+        if (reported)
+            return;
+        reported = true;
+        metrics.onHttpCall(httpMethod, statusCode, bytesOut, bytesIn, (System.nanoTime() - startNanos) / 1000000);
+    }
+}
@@ -0,0 +1,55 @@
+package bobik;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Wraps a response entity to give back the request permit it holds once the body has been closed or discarded,
+ * that is, once its connection is free again
+ * @author Eugene Mirkin
+ */
+class PermitEntity extends HttpEntityWrapper {
+
+    private final Semaphore permits;
+    private boolean released = false;
+
+    PermitEntity(HttpEntity entity, Semaphore permits) {
+        super(entity);
+        this.permits = permits;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new FilterInputStream(super.getContent()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    release();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void consumeContent() throws IOException {
+        try {
+            super.consumeContent();
+        } finally {
+            release();
+        }
+    }
+
+    private synchronized void release() {
+        if (released)
+            return;
+        released = true;
+        permits.release();
+    }
+}
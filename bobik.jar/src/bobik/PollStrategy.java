@@ -0,0 +1,20 @@
+package bobik;
+
+/**
+ * Decides when a running job's status is checked next.
+ * Install one with {@link BobikClient#setPollStrategy(PollStrategy)}; the default is an {@link AdaptivePollStrategy}.
+ * A single strategy is shared by all jobs of a client, so implementations must be thread-safe.
+ */
+public interface PollStrategy {
+
+    /**
+     * Called after every status check of a job that isn't finished yet
+     * @param progress progress reported by the latest successful status check (0 if there wasn't any)
+     * @param previousProgress progress reported by the successful status check before that (0 if there wasn't any)
+     * @param sincePreviousMs time elapsed between those two status checks (or since the job was submitted)
+     * @param estimatedTimeLeftMs Bobik's latest estimate of the time the job has left, or -1 if unknown
+     * @param consecutiveErrors number of status checks in a row that have failed, 0 if the latest one succeeded
+     * @return ms to wait before checking again. When consecutiveErrors is above 0, a negative value gives up on the job.
+     */
+    public long nextPollDelayMs(float progress, float previousProgress, long sincePreviousMs, long estimatedTimeLeftMs, int consecutiveErrors);
+}
@@ -0,0 +1,144 @@
+package bobik;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Puts a priority queue in front of an executor. At most <i>parallelism</i> tasks are handed to the executor
+ * at a time; the rest wait here, and whenever a slot frees up the most urgent one goes next.
+ * Tasks of the same priority run in the order they were submitted.
+ * <br><br>
+ * Each slot is a worker running queued tasks back to back until the queue is empty, so the underlying executor
+ * never holds more than <i>parallelism</i> of our tasks, and its own (FIFO) queue is never used.
+ * @author Eugene Mirkin
+ */
+class PriorityExecutor implements Executor {
+
+    /*
+     * Priority of the task running on the current thread, for work it does further down the stack (e.g. waiting for a rate limit)
+     */
+    private static final ThreadLocal<BobikClient.Priority> current = new ThreadLocal<BobikClient.Priority>();
+
+    private final Executor executor;
+    private volatile int parallelism;
+
+    private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+    private int workers = 0;
+    private long submitted = 0;
+
+    /**
+     * @param executor runs the workers
+     * @param parallelism max number of tasks running at the same time
+     */
+    PriorityExecutor(Executor executor, int parallelism) {
+        this.executor = executor;
+        setParallelism(parallelism);
+    }
+
+    /**
+     * Runs a task with normal priority
+     * @param task
+     */
+    @Override
+    public void execute(Runnable task) {
+        execute(task, BobikClient.Priority.NORMAL);
+    }
+
+    /**
+     * @param task
+     * @param priority
+     * @throws RejectedExecutionException if the underlying executor won't start a worker, e.g. because it's been shut down
+     */
+    void execute(Runnable task, BobikClient.Priority priority) {
+        Task queued;
+        synchronized (this) {
+            queued = new Task(task, priority, submitted++);
+            queue.add(queued);
+            if (workers >= parallelism)
+                return;
+            workers++;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                workers--;
+                queue.remove(queued);
+            }
+            throw e;
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = queue.poll();
+                if (task == null) {
+                    workers--;
+                    return;
+                }
+            }
+            current.set(task.priority);
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                current.remove();
+            }
+        }
+    }
+
+    /**
+     * @return priority of the task running on the calling thread, or NORMAL if it isn't running one of our tasks
+     */
+    static BobikClient.Priority currentPriority() {
+        BobikClient.Priority priority = current.get();
+        return priority == null ? BobikClient.Priority.NORMAL : priority;
+    }
+
+    /**
+     * @return number of tasks waiting for a worker
+     */
+    synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism takes effect as tasks come and go; workers already running are not stopped
+     */
+    void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+
+    private static class Task implements Comparable<Task> {
+        final Runnable runnable;
+        final BobikClient.Priority priority;
+        final long sequence;
+
+        Task(Runnable runnable, BobikClient.Priority priority, long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority)
+                return priority.compareTo(other.priority);
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
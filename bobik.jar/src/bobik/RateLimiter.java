@@ -0,0 +1,130 @@
+package bobik;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket. Permits are refilled continuously at a fixed rate, and up to <i>burst</i> of them
+ * can be saved up while the limiter is idle.
+ * <br>
+ * Callers waiting with a higher {@link BobikClient.Priority} go first: a permit is only handed to a caller
+ * once there's one left over for every more urgent caller still waiting.
+ * @author Eugene Mirkin
+ */
+public class RateLimiter {
+
+    private final double permitsPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    /*
+     * Number of callers waiting in acquire(), by priority
+     */
+    private final int[] waiting = new int[BobikClient.Priority.values().length];
+
+    /**
+     * @param permitsPerSecond sustained rate
+     * @param burst max number of permits handed out at once after a quiet period
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a permit, waiting for one to become available if necessary
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        acquire(BobikClient.Priority.NORMAL);
+    }
+
+    /**
+     * Takes a permit, waiting for one to become available if necessary.
+     * Permits are held back for callers of higher priority that are already waiting.
+     * @param priority
+     * @throws InterruptedException
+     */
+    public void acquire(BobikClient.Priority priority) throws InterruptedException {
+        boolean waited = false;
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                refill();
+                int needed = 1;
+                for (int i=0; i<priority.ordinal(); i++)
+                    needed += waiting[i];
+                if (tokens >= needed) {
+                    tokens -= 1;
+                    acquired.incrementAndGet();
+                    if (waited) {
+                        throttled.incrementAndGet();
+                        waiting[priority.ordinal()]--;
+                    }
+                    return;
+                }
+                if (!waited)
+                    waiting[priority.ordinal()]++;
+                // If the bucket can't hold enough permits for everyone ahead, check back once the next one is in
+                double missing = Math.min(needed, burst) - tokens;
+                waitNanos = (long)Math.ceil((missing > 0 ? missing : 1) / permitsPerNano);
+            }
+            waited = true;
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    waiting[priority.ordinal()]--;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Takes a permit if one is available right away
+     * @return true if a permit was taken
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1)
+            return false;
+        tokens -= 1;
+        acquired.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return true if a permit is available right now. Doesn't take it.
+     */
+    public synchronized boolean hasPermit() {
+        refill();
+        return tokens >= 1;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+    }
+
+    /**
+     * @return permits handed out so far
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * @return permits that had to be waited for
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+}
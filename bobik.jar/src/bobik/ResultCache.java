@@ -0,0 +1,178 @@
+package bobik;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps recently scraped data in memory, so that urls scraped again with the same queries are served
+ * without a round trip to Bobik. Entries are keyed on a normalized url plus everything else in the request
+ * (queries, query_sets and any other options), expire after a fixed time and are evicted least recently used first
+ * once the cache is full.
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    bobik.setResultCache(new ResultCache(10000, 5 * 60 * 1000));
+ * }
+ * </pre>
+ * Cached data is shared between jobs rather than copied, so listeners should not modify it.
+ * @author Eugene Mirkin
+ */
+public class ResultCache {
+
+    private final int maxEntries;
+    private final long ttlMs;
+
+    /*
+     * Entries in access order, so that the eldest one is the least recently used. Guarded by this.
+     */
+    private final LinkedHashMap<String, CachedData> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    /**
+     * @param maxEntries max number of (url, request) entries held at once
+     * @param ttlMs how long an entry stays valid after it was scraped
+     */
+    public ResultCache(final int maxEntries, long ttlMs) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<String, CachedData>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedData> eldest) {
+                if (size() <= maxEntries)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param url
+     * @param request_key see {@link #getRequestKey(JSONObject)}
+     * @return scraped data of the url, or null if it isn't cached or has expired
+     */
+    public synchronized Object get(String url, String request_key) {
+        String key = getKey(url, request_key);
+        CachedData entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.created > ttlMs) {
+            entries.remove(key);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.data;
+    }
+
+    /**
+     * @param url
+     * @param request_key see {@link #getRequestKey(JSONObject)}
+     * @param data scraped data of the url
+     */
+    public synchronized void put(String url, String request_key, Object data) {
+        entries.put(getKey(url, request_key), new CachedData(data, System.currentTimeMillis()));
+    }
+
+    /**
+     * Drops all entries. Statistics are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return number of entries held, including expired ones that haven't been looked up since
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param request
+     * @return a key identifying everything in a request that affects scraped data, except for its urls.
+     * The key is the same as that of the equivalent ScrapeRequest, so a single query and an array holding just that query
+     * share a key, and so do requests without queries and with an empty array of them.
+     * @throws JSONException
+     */
+    public static String getRequestKey(JSONObject request) throws JSONException {
+        return ScrapeRequest.fromJSONObject(request).getRequestKey();
+    }
+
+    private static String getKey(String url, String request_key) {
+        return normalizeUrl(url) + '\n' + request_key;
+    }
+
+    /**
+     * Lowercases the scheme and host, and drops the fragment and a bare trailing slash,
+     * so that trivially different spellings of a url share an entry
+     * @param url
+     * @return normalized url
+     */
+    static String normalizeUrl(String url) {
+        String normalized = url.trim();
+        int fragment = normalized.indexOf('#');
+        if (fragment >= 0)
+            normalized = normalized.substring(0, fragment);
+        int scheme_end = normalized.indexOf("://");
+        int host_start = scheme_end < 0 ? 0 : scheme_end + 3;
+        int host_end = normalized.indexOf('/', host_start);
+        if (host_end < 0)
+            host_end = normalized.length();
+        else if (host_end == normalized.length() - 1)
+            normalized = normalized.substring(0, host_end);
+        return normalized.substring(0, host_end).toLowerCase() + normalized.substring(host_end);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+    public synchronized long getMisses() {
+        return misses;
+    }
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+    /**
+     * @return fraction of lookups (0..1) served from the cache
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+    }
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d expirations",
+                entries.size(), hits, misses, getHitRate() * 100, evictions, expirations);
+    }
+
+
+    private static class CachedData {
+        final Object data;
+        final long created;
+
+        CachedData(Object data, long created) {
+            this.data = data;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package bobik;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the results of many scraping requests, merged into one sequence of records, at the pace its subscriber asks for them.
+ * Jobs are only submitted (and so only polled and fetched) while the subscriber has outstanding demand that the records
+ * already on hand won't cover, and never more than {@link #getMaxJobsInFlight()} at a time. A slow consumer
+ * thus holds back scraping rather than piling results up on the heap.
+ * <br><br>
+ * Subscriber and Subscription follow the contract of the Reactive Streams interfaces in <i>java.util.concurrent.Flow</i>,
+ * which aren't available on every platform this SDK runs on; wrapping a Flow.Subscriber takes a few lines.
+ * Records are emitted in the order their jobs finish. <i>onNext</i>, <i>onError</i> and <i>onComplete</i> are never
+ * called concurrently, and are made on the client's dispatch executor (see {@link BobikClient#setDispatchExecutor}),
+ * so a slow subscriber never holds up the threads making HTTP calls.
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    bobik.publish(requests).subscribe(new ResultPublisher.Subscriber() {
+        private ResultPublisher.Subscription subscription;
+        public void onSubscribe(ResultPublisher.Subscription s) {
+            subscription = s;
+            s.request(100);
+        }
+        public void onNext(ResultPublisher.Record record) {
+            database.write(record.getKey(), record.getData());
+            subscription.request(1);
+        }
+        public void onError(Throwable failure) {
+            failure.printStackTrace();
+        }
+        public void onComplete() {
+            System.out.println("All done");
+        }
+    });
+ * }
+ * </pre>
+ * A publisher can only be subscribed to once. A job that fails ends the stream with <i>onError</i>,
+ * and the jobs still running are cancelled.
+ * @author Eugene Mirkin
+ */
+public class ResultPublisher {
+
+    private final BobikClient client;
+    private final List<JSONObject> requests;
+    private final int maxJobsInFlight;
+
+    /*
+     * State shared with the drain loop, guarded by this
+     */
+    private Subscriber subscriber = null;
+    private boolean subscribed = false;
+    private long demand = 0;
+    private int next_request = 0;
+    private final Set<Job> running = new HashSet<Job>();
+    private long expected_records = 0;
+    private final Queue<Record> buffered = new LinkedList<Record>();
+    private Throwable failure = null;
+    private boolean cancelled = false;
+    private boolean terminated = false;
+
+    /*
+     * Number of times the drain loop was asked to run; it keeps going until it has caught up with all of them
+     */
+    private final AtomicInteger drain_requests = new AtomicInteger();
+
+    /*
+     * Runs the drain loop, and with it every signal to the subscriber, on the dispatch executor
+     */
+    private final CallbackQueue signals;
+
+    ResultPublisher(BobikClient client, List<JSONObject> requests, int maxJobsInFlight) {
+        this.client = client;
+        this.signals = new CallbackQueue(client);
+        this.requests = new ArrayList<JSONObject>(requests);
+        this.maxJobsInFlight = Math.max(1, maxJobsInFlight);
+    }
+
+    /**
+     * Attaches the one and only subscriber. Nothing is submitted until it requests records.
+     * A second subscriber is immediately told it can't subscribe, through <i>onError</i>.
+     * @param subscriber
+     */
+    public void subscribe(Subscriber subscriber) {
+        synchronized (this) {
+            if (this.subscriber == null) {
+                this.subscriber = subscriber;
+                subscriber = null;
+            }
+        }
+        if (subscriber != null) {
+            subscriber.onSubscribe(new Subscription() {
+                public void request(long n) {
+                }
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("ResultPublisher can only be subscribed to once"));
+            return;
+        }
+        this.subscriber.onSubscribe(new Subscription() {
+            public void request(long n) {
+                ResultPublisher.this.request(n);
+            }
+            public void cancel() {
+                ResultPublisher.this.cancel();
+            }
+        });
+        // Records requested from within onSubscribe are held back until it returns
+        synchronized (this) {
+            subscribed = true;
+        }
+        drain();
+    }
+
+    private void request(long n) {
+        synchronized (this) {
+            if (n <= 0)
+                fail(new IllegalArgumentException("Subscribers must request a positive number of records, not " + n));
+            else
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+        drain();
+    }
+
+    private void cancel() {
+        List<Job> jobs;
+        synchronized (this) {
+            if (cancelled)
+                return;
+            cancelled = true;
+            buffered.clear();
+            jobs = new ArrayList<Job>(running);
+        }
+        for (Job job : jobs)
+            job.cancel(true);
+    }
+
+    /**
+     * Records a failure that ends the stream. Must be called holding this.
+     * @param e
+     */
+    private void fail(Throwable e) {
+        if (failure == null)
+            failure = e;
+    }
+
+    /**
+     * Runs the drain loop on the dispatch executor, unless it's already running, in which case it makes another pass
+     */
+    private void drain() {
+        if (drain_requests.getAndIncrement() != 0)
+            return;
+        signals.execute(new Runnable() {
+            @Override
+            public void run() {
+                int passes = 1;
+                do {
+                    drainOnce();
+                    passes = drain_requests.addAndGet(-passes);
+                } while (passes != 0);
+            }
+        });
+    }
+
+    /**
+     * Hands buffered records to the subscriber as far as demand allows, then starts as many jobs as
+     * the remaining demand calls for, then checks whether the stream is over
+     */
+    private void drainOnce() {
+        while (true) {
+            Record record;
+            synchronized (this) {
+                if (!subscribed || cancelled || terminated || failure != null || demand == 0 || buffered.isEmpty())
+                    break;
+                record = buffered.poll();
+                if (demand != Long.MAX_VALUE)
+                    demand--;
+            }
+            try {
+                subscriber.onNext(record);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                cancel();
+                return;
+            }
+        }
+        startJobs();
+        terminate();
+    }
+
+    /**
+     * Submits the next requests while demand isn't covered by what's buffered and what the running jobs will bring
+     */
+    private void startJobs() {
+        while (true) {
+            JSONObject request;
+            synchronized (this) {
+                if (!subscribed || cancelled || failure != null || next_request >= requests.size() || running.size() >= maxJobsInFlight
+                        || buffered.size() + expected_records >= demand)
+                    return;
+                request = requests.get(next_request++);
+                expected_records += getExpectedRecords(request);
+            }
+            final long expected = getExpectedRecords(request);
+            Job job;
+            try {
+                job = client.scrapeAsync(request);
+            } catch (Exception e) {
+                synchronized (this) {
+                    expected_records -= expected;
+                    fail(e);
+                }
+                return;
+            }
+            synchronized (this) {
+                running.add(job);
+            }
+            job.whenComplete(new JobCompletionHandler() {
+                @Override
+                public void onComplete(Job job, JSONObject scraped_data, Exception failure) {
+                    jobFinished(job, expected, scraped_data, failure);
+                }
+            });
+        }
+    }
+
+    private void jobFinished(Job job, long expected, JSONObject scraped_data, Exception job_failure) {
+        synchronized (this) {
+            running.remove(job);
+            expected_records -= expected;
+            if (cancelled)
+                return;
+            if (job_failure != null) {
+                if (!(job_failure instanceof CancellationException))
+                    fail(new BobikException("Job " + job.id() + " failed", job_failure));
+            } else if (scraped_data != null) {
+                for (Iterator<?> i=scraped_data.keys(); i.hasNext(); ) {
+                    String key = (String)i.next();
+                    buffered.add(new Record(job.id(), key, scraped_data.opt(key)));
+                }
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Signals the end of the stream, once there's nothing left to deliver or a job has failed
+     */
+    private void terminate() {
+        Throwable e;
+        List<Job> jobs;
+        synchronized (this) {
+            if (!subscribed || terminated || cancelled)
+                return;
+            if (failure == null && (next_request < requests.size() || !running.isEmpty() || !buffered.isEmpty()))
+                return;
+            terminated = true;
+            e = failure;
+            jobs = new ArrayList<Job>(running);
+            buffered.clear();
+        }
+        for (Job job : jobs)
+            job.cancel(true);
+        try {
+            if (e == null)
+                subscriber.onComplete();
+            else
+                subscriber.onError(e);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @param request
+     * @return number of records a request is expected to produce: one per url
+     */
+    private static long getExpectedRecords(JSONObject request) {
+        JSONArray urls = request.optJSONArray(BobikConstants.URLS_TOKEN_LABEL);
+        return urls == null || urls.length() == 0 ? 1 : urls.length();
+    }
+
+    public int getMaxJobsInFlight() {
+        return maxJobsInFlight;
+    }
+    /**
+     * @return number of records fetched but not yet requested by the subscriber
+     */
+    public synchronized int getBufferedRecords() {
+        return buffered.size();
+    }
+    public synchronized int getRunningJobs() {
+        return running.size();
+    }
+
+
+    /**
+     * Receives records from a ResultPublisher, mirroring <i>Flow.Subscriber</i>
+     */
+    public interface Subscriber {
+        /**
+         * Called once, before any other call. Nothing is sent until records are requested through the subscription.
+         * @param subscription
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * Called for every record, never more often than requested
+         * @param record
+         */
+        public void onNext(Record record);
+
+        /**
+         * Called at most once, if a job failed or the subscription was misused. No other calls follow.
+         * @param failure
+         */
+        public void onError(Throwable failure);
+
+        /**
+         * Called at most once, after every record of every job has been delivered. No other calls follow.
+         */
+        public void onComplete();
+    }
+
+
+    /**
+     * A subscriber's handle on the stream, mirroring <i>Flow.Subscription</i>
+     */
+    public interface Subscription {
+        /**
+         * Asks for up to n more records. Demand adds up; Long.MAX_VALUE means no limit.
+         * @param n a positive number
+         */
+        public void request(long n);
+
+        /**
+         * Stops the stream and cancels the jobs still running. Records already on hand are dropped.
+         */
+        public void cancel();
+    }
+
+
+    /**
+     * A single entry of a job's results
+     */
+    public static class Record {
+        private final String jobId;
+        private final String key;
+        private final Object data;
+
+        Record(String jobId, String key, Object data) {
+            this.jobId = jobId;
+            this.key = key;
+            this.data = data;
+        }
+
+        /**
+         * @return id of the job the record came from, or null if it was served entirely from the result cache
+         */
+        public String getJobId() {
+            return jobId;
+        }
+        /**
+         * @return the url (or query) the record belongs to
+         */
+        public String getKey() {
+            return key;
+        }
+        /**
+         * @return scraped data for the key: a JSONObject, JSONArray, String, Number or Boolean
+         */
+        public Object getData() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package bobik;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps finished results on disk, so that they survive restarts and don't have to be held on the heap.
+ * Every url entry of a job's results is appended as a record to the current segment file; a new segment is started
+ * once the current one reaches {@link #getMaxSegmentBytes()}, which is at most 2GB, the most a single mapping can hold.
+ * Records are never modified in place.
+ * <br>
+ * An index by job id and by url is kept in memory and rebuilt from the segments when the store is opened.
+ * Records are read back through memory-mapped segments, so only the entries asked for are ever parsed.
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    ResultStore store = new ResultStore(new File("/var/lib/bobik"));
+    bobik.setResultStore(store);
+    ...
+    for (String url : store.getUrls(job.id()))
+        for (JSONObject row : BobikHelper.transpose((JSONObject)store.get(job.id(), url)))
+            System.out.println(row);
+ * }
+ * </pre>
+ * Record layout: total length (int), job id (UTF-8, short length prefix), url (UTF-8, short length prefix),
+ * data as JSON text (UTF-8, int length prefix). A record cut short by a crash is ignored, and overwritten by the next append.
+ * @author Eugene Mirkin
+ */
+public class ResultStore implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /*
+     * Segments are read through a single mapping, whose positions are ints
+     */
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+    private final File directory;
+    private final long maxSegmentBytes;
+
+    /*
+     * All segments in order. The last one is open for appends.
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private int next_segment_number = 0;
+
+    /*
+     * Locations of every record by job id (in append order) and of the latest record of every url
+     */
+    private final Map<String, Map<String, Location>> jobs = new LinkedHashMap<String, Map<String, Location>>();
+    private final Map<String, Location> latest_by_url = new HashMap<String, Location>();
+
+    private boolean closed = false;
+
+    /**
+     * Opens a store with 64MB segments
+     * @param directory created if it doesn't exist
+     * @throws IOException
+     */
+    public ResultStore(File directory) throws IOException {
+        this(directory, 64 * 1024 * 1024);
+    }
+
+    /**
+     * @param directory created if it doesn't exist
+     * @param maxSegmentBytes size at which a new segment file is started, capped at 2GB
+     * @throws IOException
+     */
+    public ResultStore(File directory, long maxSegmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, MAX_SEGMENT_BYTES);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create " + directory);
+        File[] files = directory.listFiles();
+        List<String> names = new ArrayList<String>();
+        for (File file : files) {
+            if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX))
+                names.add(file.getName());
+        }
+        Collections.sort(names);
+        for (String name : names) {
+            try {
+                next_segment_number = 1 + Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = new Segment(new File(directory, name), segments.size());
+            segments.add(segment);
+            segment.recover();
+        }
+        if (segments.isEmpty())
+            startSegment();
+    }
+
+    /**
+     * Appends every entry of a job's results
+     * @param job_id
+     * @param scraped_data results, keyed by url
+     * @throws IOException
+     * @throws JSONException
+     */
+    public void put(String job_id, JSONObject scraped_data) throws IOException, JSONException {
+        for (Iterator<?> i=scraped_data.keys(); i.hasNext(); ) {
+            String url = (String)i.next();
+            put(job_id, url, scraped_data.get(url));
+        }
+    }
+
+    /**
+     * Appends a single entry of a job's results
+     * @param job_id
+     * @param url
+     * @param data a JSONObject, JSONArray, String, Number or Boolean
+     * @throws IOException
+     */
+    public synchronized void put(String job_id, String url, Object data) throws IOException {
+        checkOpen();
+        byte[] id_bytes = job_id.getBytes("UTF-8");
+        byte[] url_bytes = url.getBytes("UTF-8");
+        byte[] data_bytes = toJson(data).getBytes("UTF-8");
+        if (id_bytes.length > Short.MAX_VALUE || url_bytes.length > Short.MAX_VALUE)
+            throw new IOException("Job id or url is too long to be stored: " + url);
+        int length = 2 + id_bytes.length + 2 + url_bytes.length + 4 + data_bytes.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        record.putShort((short)id_bytes.length).put(id_bytes);
+        record.putShort((short)url_bytes.length).put(url_bytes);
+        record.putInt(data_bytes.length).put(data_bytes);
+        record.flip();
+
+        Segment segment = segments.get(segments.size() - 1);
+        if (record.remaining() > MAX_SEGMENT_BYTES)
+            throw new IOException("Data is too large to be stored: " + url);
+        if (segment.size > 0 && segment.size + record.remaining() > maxSegmentBytes)
+            segment = startSegment();
+        long position = segment.append(record);
+        index(job_id, url, new Location(segment.index, position, 4 + length));
+    }
+
+    /**
+     * @param job_id
+     * @param url
+     * @return data stored for the url by the given job, or null if there's none
+     * @throws IOException
+     * @throws JSONException
+     */
+    public synchronized Object get(String job_id, String url) throws IOException, JSONException {
+        Map<String, Location> entries = jobs.get(job_id);
+        Location location = entries == null ? null : entries.get(url);
+        return location == null ? null : read(location);
+    }
+
+    /**
+     * @param url
+     * @return most recently stored data for the url, by any job, or null if there's none
+     * @throws IOException
+     * @throws JSONException
+     */
+    public synchronized Object getLatest(String url) throws IOException, JSONException {
+        Location location = latest_by_url.get(url);
+        return location == null ? null : read(location);
+    }
+
+    /**
+     * Reads back all results of a job. For large jobs, page through them with {@link #getJob(String, int, int)} instead.
+     * @param job_id
+     * @return results keyed by url, or null if the job isn't stored
+     * @throws IOException
+     * @throws JSONException
+     */
+    public JSONObject getJob(String job_id) throws IOException, JSONException {
+        return getJob(job_id, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads back a page of a job's results, in the order they were stored
+     * @param job_id
+     * @param offset number of entries to skip
+     * @param limit max number of entries to read
+     * @return results keyed by url, or null if the job isn't stored
+     * @throws IOException
+     * @throws JSONException
+     */
+    public synchronized JSONObject getJob(String job_id, int offset, int limit) throws IOException, JSONException {
+        Map<String, Location> entries = jobs.get(job_id);
+        if (entries == null)
+            return null;
+        JSONObject page = new JSONObject();
+        int n = 0;
+        for (Map.Entry<String, Location> entry : entries.entrySet()) {
+            if (n >= offset + (long)limit)
+                break;
+            if (n++ >= offset)
+                page.put(entry.getKey(), read(entry.getValue()));
+        }
+        return page;
+    }
+
+    /**
+     * @param job_id
+     * @return urls stored for the job, in the order they were stored
+     */
+    public synchronized List<String> getUrls(String job_id) {
+        Map<String, Location> entries = jobs.get(job_id);
+        return entries == null ? Collections.<String>emptyList() : new ArrayList<String>(entries.keySet());
+    }
+
+    /**
+     * @return ids of all stored jobs, in the order they were first stored
+     */
+    public synchronized List<String> getJobIds() {
+        return new ArrayList<String>(jobs.keySet());
+    }
+
+    /**
+     * @return total size of all segments
+     */
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.size;
+        return size;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+    public long getMaxSegmentBytes() {
+        return maxSegmentBytes;
+    }
+
+    /**
+     * Flushes the current segment to disk and closes all segments
+     */
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        IOException failure = null;
+        for (Segment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("ResultStore has been closed");
+    }
+
+    private void index(String job_id, String url, Location location) {
+        Map<String, Location> entries = jobs.get(job_id);
+        if (entries == null) {
+            entries = new LinkedHashMap<String, Location>();
+            jobs.put(job_id, entries);
+        }
+        entries.put(url, location);
+        latest_by_url.put(url, location);
+    }
+
+    private Object read(Location location) throws IOException, JSONException {
+        checkOpen();
+        ByteBuffer record = segments.get(location.segment).map(location.position, location.length);
+        record.getInt();
+        skipString(record);
+        skipString(record);
+        byte[] data = new byte[record.getInt()];
+        record.get(data);
+        // Wrap the value so that strings, numbers and booleans parse as well as objects and arrays
+        return new JSONObject("{\"v\":" + new String(data, "UTF-8") + "}").get("v");
+    }
+
+    private static String toJson(Object data) {
+        if (data instanceof String)
+            return JSONObject.quote((String)data);
+        return String.valueOf(data);
+    }
+
+    private static void skipString(ByteBuffer record) {
+        int length = record.getShort();
+        record.position(record.position() + length);
+    }
+
+    /**
+     * @param in
+     * @return a short length prefix followed by that many bytes
+     * @throws EOFException if the stream ends first, or the length is garbled
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readShort();
+        if (length < 0)
+            throw new EOFException();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0)
+                throw new EOFException();
+            count -= skipped;
+        }
+    }
+
+    private Segment startSegment() throws IOException {
+        if (!segments.isEmpty())
+            segments.get(segments.size() - 1).file.getChannel().force(false);
+        String number = Integer.toString(next_segment_number++);
+        char[] padding = new char[Math.max(0, 8 - number.length())];
+        Arrays.fill(padding, '0');
+        Segment segment = new Segment(new File(directory, SEGMENT_PREFIX + new String(padding) + number + SEGMENT_SUFFIX), segments.size());
+        segments.add(segment);
+        return segment;
+    }
+
+
+    /**
+     * Where a record lives
+     */
+    private static class Location {
+        final int segment;
+        final long position;
+        final int length;
+
+        Location(int segment, long position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+
+    /**
+     * A single segment file. Reads go through read-only mappings of the file. When a record past their end is asked for,
+     * only what was appended since is mapped, rather than the whole file again.
+     */
+    private class Segment {
+        final RandomAccessFile file;
+        final int index;
+        long size;
+
+        /*
+         * Mappings of consecutive regions of the file, from its start up to mapped_end.
+         * Each region is more than twice as long as the next, so there are only a few of them.
+         */
+        final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+        final List<Long> region_starts = new ArrayList<Long>();
+        long mapped_end = 0;
+
+        Segment(File path, int index) throws IOException {
+            this.file = new RandomAccessFile(path, "rw");
+            this.index = index;
+            this.size = file.length();
+        }
+
+        long append(ByteBuffer record) throws IOException {
+            long position = size;
+            FileChannel channel = file.getChannel();
+            long offset = position;
+            while (record.hasRemaining())
+                offset += channel.write(record, offset);
+            size = offset;
+            return position;
+        }
+
+        ByteBuffer map(long position, int length) throws IOException {
+            if (position + length > mapped_end) {
+                long start = mapped_end;
+                // Regions that aren't much longer than the new one are mapped again along with it
+                while (!regions.isEmpty() && regions.get(regions.size() - 1).capacity() <= 2 * (size - start)) {
+                    regions.remove(regions.size() - 1);
+                    start = region_starts.remove(region_starts.size() - 1);
+                }
+                regions.add(file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, size - start));
+                region_starts.add(start);
+                mapped_end = size;
+            }
+            // Regions end where records end, so a record never spans two of them
+            int region = regions.size() - 1;
+            while (region_starts.get(region) > position)
+                region--;
+            int offset = (int)(position - region_starts.get(region));
+            ByteBuffer record = regions.get(region).duplicate();
+            record.position(offset);
+            record.limit(offset + length);
+            return record.slice();
+        }
+
+        /**
+         * Indexes every complete record, and cuts off a trailing partial one.
+         * The file is read as a stream rather than mapped, as a file can't be truncated while a mapping of it is alive.
+         * @throws IOException
+         */
+        void recover() throws IOException {
+            if (size == 0)
+                return;
+            FileChannel channel = file.getChannel();
+            channel.position(0);
+            // Not closed, as that would close the segment's file too
+            DataInputStream records = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+            long position = 0;
+            try {
+                while (size - position >= 4) {
+                    int length = records.readInt();
+                    if (length <= 0 || length > size - position - 4)
+                        break;
+                    byte[] job_id = readBytes(records);
+                    byte[] url = readBytes(records);
+                    int data_length = length - 2 - job_id.length - 2 - url.length;
+                    if (data_length < 4)
+                        break;
+                    skipFully(records, data_length);
+                    index(new String(job_id, "UTF-8"), new String(url, "UTF-8"), new Location(index, position, 4 + length));
+                    position += 4 + length;
+                }
+            } catch (EOFException e) {
+                // A record cut short, or garbled
+            }
+            if (position < size) {
+                file.setLength(position);
+                size = position;
+            }
+        }
+
+        void close() throws IOException {
+            file.getChannel().force(false);
+            file.close();
+            regions.clear();
+            region_starts.clear();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package bobik;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A columnar view over a hash of parallel arrays, as returned by Bobik for each url.
+ * Rows are read in place from the original arrays instead of being copied into a JSONObject each,
+ * which keeps large result sets cheap to walk through.
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    ResultTable table = new ResultTable(scraped_data.getJSONObject("amazon.com"));
+    for (int i=0; i<table.size(); i++)
+        System.out.println(table.getString(i, "title") + ": " + table.getDouble(i, "price"));
+ * }
+ * </pre>
+ * The same length rules as in {@link BobikHelper#transpose(JSONObject)} apply.
+ * @author Eugene Mirkin
+ */
+public class ResultTable {
+
+    /*
+     * Rows materialized by a single task when converting in parallel
+     */
+    private static final int MIN_ROWS_PER_TASK = 1024;
+
+    private final String[] keys;
+    private final JSONArray[] columns;
+    private final Map<String, Integer> column_index;
+    private final int size;
+
+    /**
+     * @param x a hash of parallel arrays
+     * @throws ArrayIndexOutOfBoundsException if arrays are not of equal length
+     * @throws JSONException if the incoming object is not of the expected format
+     */
+    public ResultTable(JSONObject x) throws ArrayIndexOutOfBoundsException, JSONException {
+        List<String> key_list = new ArrayList<String>(x.length());
+        List<JSONArray> column_list = new ArrayList<JSONArray>(x.length());
+        int common_array_length = 0;
+        for (Iterator<?> i=x.keys(); i.hasNext(); ) {
+            String key = (String)i.next();
+            JSONArray values = x.getJSONArray(key);
+            if (values.length() == 0)
+                continue;   // this key has no values => skip it
+            if (common_array_length == 0)
+                common_array_length = values.length();  // this is the first non-zero length => use it as standard
+            else if (values.length() != common_array_length)
+                throw new ArrayIndexOutOfBoundsException("Number of elements labelled '" + key
+                        + "' (" + values.length() + ") does not match expected length of " + common_array_length);
+            key_list.add(key);
+            column_list.add(values);
+        }
+        keys = key_list.toArray(new String[key_list.size()]);
+        columns = column_list.toArray(new JSONArray[column_list.size()]);
+        column_index = new HashMap<String, Integer>(keys.length * 2);
+        for (int c=0; c<keys.length; c++)
+            column_index.put(keys[c], c);
+        size = common_array_length;
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return labels of all non-empty columns
+     */
+    public List<String> keys() {
+        return Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    /**
+     * @param row
+     * @param key
+     * @return value at the given row and column, or null if there's no such column or the value is null
+     */
+    public Object get(int row, String key) {
+        Integer c = column_index.get(key);
+        if (c == null)
+            return null;
+        Object value = columns[c].opt(checkRow(row));
+        return value == JSONObject.NULL ? null : value;
+    }
+
+    /**
+     * @param row
+     * @param key
+     * @return value at the given row and column as a string, or null if it is missing
+     */
+    public String getString(int row, String key) {
+        Object value = get(row, key);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * @param row
+     * @param key
+     * @return value at the given row and column as a number, or NaN if it is missing or not numeric
+     */
+    public double getDouble(int row, String key) {
+        Object value = get(row, key);
+        if (value instanceof Number)
+            return ((Number)value).doubleValue();
+        if (value != null) {
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @param row
+     * @param key
+     * @param defaultValue returned if the value is missing or not numeric
+     * @return value at the given row and column as a long
+     */
+    public long getLong(int row, String key, long defaultValue) {
+        Object value = get(row, key);
+        if (value instanceof Number)
+            return ((Number)value).longValue();
+        if (value != null) {
+            try {
+                return Long.parseLong(value.toString());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param row
+     * @return a lightweight view of the given row
+     */
+    public Row row(int row) {
+        return new Row(checkRow(row));
+    }
+
+    /**
+     * Copies every row into its own JSONObject. See {@link BobikHelper#transpose(JSONObject)}.
+     * @return a transposed array
+     * @throws JSONException
+     */
+    public List<JSONObject> toJSONObjects() throws JSONException {
+        JSONObject[] rows = new JSONObject[size];
+        materialize(rows, 0, size);
+        return new ArrayList<JSONObject>(Arrays.asList(rows));
+    }
+
+    /**
+     * Same as {@link #toJSONObjects()}, but splits the work across an executor.
+     * Worth it for very long or very wide tables only.
+     * @param executor runs conversion tasks
+     * @param parallelism max number of tasks to split the rows into
+     * @return a transposed array
+     * @throws JSONException
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public List<JSONObject> toJSONObjects(ExecutorService executor, int parallelism) throws JSONException, InterruptedException, ExecutionException {
+        int tasks = Math.min(parallelism, (size + MIN_ROWS_PER_TASK - 1) / MIN_ROWS_PER_TASK);
+        if (tasks <= 1)
+            return toJSONObjects();
+        final JSONObject[] rows = new JSONObject[size];
+        int rows_per_task = (size + tasks - 1) / tasks;
+        List<Future<Object>> pending = new ArrayList<Future<Object>>(tasks);
+        for (int start=0; start<size; start+=rows_per_task) {
+            final int from = start;
+            final int to = Math.min(size, start + rows_per_task);
+            pending.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    materialize(rows, from, to);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> task : pending)
+            task.get();
+        return new ArrayList<JSONObject>(Arrays.asList(rows));
+    }
+
+    private void materialize(JSONObject[] rows, int from, int to) throws JSONException {
+        for (int z=from; z<to; z++)
+            rows[z] = new Row(z).toJSONObject();
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("Row " + row + " is out of bounds for a table of " + size + " rows");
+        return row;
+    }
+
+
+    /**
+     * A single row of a ResultTable. Values are read from the underlying columns on demand.
+     */
+    public class Row {
+        private final int index;
+
+        private Row(int index) {
+            this.index = index;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public Object get(String key) {
+            return ResultTable.this.get(index, key);
+        }
+
+        public String getString(String key) {
+            return ResultTable.this.getString(index, key);
+        }
+
+        public double getDouble(String key) {
+            return ResultTable.this.getDouble(index, key);
+        }
+
+        public long getLong(String key, long defaultValue) {
+            return ResultTable.this.getLong(index, key, defaultValue);
+        }
+
+        /**
+         * Copies this row into a JSONObject, inserting null when no data is available
+         * @return row
+         * @throws JSONException
+         */
+        public JSONObject toJSONObject() throws JSONException {
+            JSONObject row = new JSONObject();
+            for (int c=0; c<keys.length; c++)
+                row.put(keys[c], columns[c].opt(index));
+            return row;
+        }
+    }
+}
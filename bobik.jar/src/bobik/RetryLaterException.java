@@ -0,0 +1,37 @@
+package bobik;
+
+/**
+ * Thrown in place of sleeping between retries when a call failed while the JobMonitor was checking on a job.
+ * The monitor schedules the next check after the delay instead, so that no I/O thread sits idle waiting for a backoff.
+ *
+ */
+class RetryLaterException extends BobikException {
+	private static final long serialVersionUID = 5120733402713640119L;
+
+	private final long delayMs;
+
+	/**
+	 * @param delayMs backoff asked for by the client's RetryPolicy
+	 * @param failure the IOException or BobikHttpException that failed the call
+	 */
+	RetryLaterException(long delayMs, Exception failure) {
+		super("Retrying in " + delayMs + "ms", failure);
+		this.delayMs = delayMs;
+	}
+
+	long getDelayMs() {
+		return delayMs;
+	}
+
+	/**
+	 * @param e
+	 * @return the delay of the RetryLaterException among e and its causes, or -1 if there's none
+	 */
+	static long getDelayMs(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof RetryLaterException)
+				return ((RetryLaterException)cause).getDelayMs();
+		}
+		return -1;
+	}
+}
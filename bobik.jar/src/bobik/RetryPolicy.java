@@ -0,0 +1,157 @@
+package bobik;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether and when a failed Bobik API call is retried, and counts the outcome of every call.
+ * <br><br>
+ * Status checks and result fetches (GET) are idempotent and are retried on any network error, on 429 and on 5xx responses.
+ * Job submissions (POST) are only retried when the request certainly didn't create a job: when no connection
+ * could be made, or when the server turned the request away with 429 or 503.
+ * Retries back off exponentially with full jitter, and never sooner than the server's Retry-After asks for.
+ * @author Eugene Mirkin
+ */
+public class RetryPolicy {
+
+    private final Random random = new Random();
+
+    private int maxAttempts = 3;
+    private long baseBackoffMs = 200;
+    private long maxBackoffMs = 10000;
+    private long maxRetryAfterMs = 60000;
+
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong successesAfterRetry = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong notRetryable = new AtomicLong();
+
+    /**
+     * @param httpMethod GET/POST
+     * @param attempt number of the attempt that just failed, starting at 1
+     * @param failure an IOException or BobikException
+     * @return ms to wait before the next attempt, or -1 to give up
+     */
+    public long backoffMs(String httpMethod, int attempt, Exception failure) {
+        if (!isRetryable(httpMethod, failure)) {
+            notRetryable.incrementAndGet();
+            return -1;
+        }
+        if (attempt >= maxAttempts) {
+            exhausted.incrementAndGet();
+            return -1;
+        }
+        long ceiling = Math.min(maxBackoffMs, baseBackoffMs << Math.min(attempt - 1, 20));
+        long backoff;
+        synchronized (random) {
+            backoff = (long)(random.nextDouble() * ceiling);
+        }
+        if (failure instanceof BobikHttpException) {
+            long retryAfterMs = ((BobikHttpException)failure).getRetryAfterMs();
+            if (retryAfterMs > maxRetryAfterMs) {
+                exhausted.incrementAndGet();
+                return -1;
+            }
+            backoff = Math.max(backoff, retryAfterMs);
+        }
+        retries.incrementAndGet();
+        return backoff;
+    }
+
+    /**
+     * @param httpMethod GET/POST
+     * @param failure
+     * @return true if repeating the call is both safe and likely to help
+     */
+    protected boolean isRetryable(String httpMethod, Exception failure) {
+        boolean idempotent = !httpMethod.equalsIgnoreCase("POST");
+        if (failure instanceof BobikHttpException) {
+            int statusCode = ((BobikHttpException)failure).getStatusCode();
+            if (idempotent)
+                return statusCode >= 500 || statusCode == 429;
+            return statusCode == 503 || statusCode == 429;
+        }
+        if (failure instanceof IOException) {
+            if (idempotent)
+                return true;
+            return failure instanceof ConnectException || failure instanceof ConnectTimeoutException
+                    || failure instanceof UnknownHostException;
+        }
+        return false;
+    }
+
+    /**
+     * Counts a call that eventually succeeded
+     * @param attempts number of attempts it took
+     */
+    void recordSuccess(int attempts) {
+        successes.incrementAndGet();
+        if (attempts > 1)
+            successesAfterRetry.incrementAndGet();
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+    /**
+     * @param maxAttempts total number of attempts per call, including the first one
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+    public long getBaseBackoffMs() {
+        return baseBackoffMs;
+    }
+    public void setBaseBackoffMs(long baseBackoffMs) {
+        this.baseBackoffMs = baseBackoffMs;
+    }
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+    public void setMaxBackoffMs(long maxBackoffMs) {
+        this.maxBackoffMs = maxBackoffMs;
+    }
+    public long getMaxRetryAfterMs() {
+        return maxRetryAfterMs;
+    }
+    /**
+     * @param maxRetryAfterMs calls are not retried if the server asks to wait longer than this
+     */
+    public void setMaxRetryAfterMs(long maxRetryAfterMs) {
+        this.maxRetryAfterMs = maxRetryAfterMs;
+    }
+
+    /**
+     * @return calls that succeeded, with or without retries
+     */
+    public long getSuccesses() {
+        return successes.get();
+    }
+    public long getSuccessesAfterRetry() {
+        return successesAfterRetry.get();
+    }
+    /**
+     * @return attempts that were repeated
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+    /**
+     * @return calls that failed after running out of attempts
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+    /**
+     * @return calls that failed in a way that isn't safe or useful to retry
+     */
+    public long getNotRetryable() {
+        return notRetryable.get();
+    }
+}
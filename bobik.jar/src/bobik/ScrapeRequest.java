@@ -0,0 +1,283 @@
+package bobik;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable scraping request. Its JSON form is written once, when the request is built, and reused every time
+ * the request is submitted, so a request can be shared between threads and resubmitted at no cost.
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    ScrapeRequest request = new ScrapeRequest.Builder()
+        .addUrls(Arrays.asList("amazon.com", "google.com"))
+        .addQuery("//a/@href")
+        .addQuery("return $('.logo').length")
+        .build();
+    Job job = bobik.scrape(request, listener);
+ * }
+ * </pre>
+ * Options other than urls and queries (see http://usebobik.com/api/docs#func_ref) are set with
+ * {@link Builder#setOption(String, Object)}. The auth token is never part of a request; the client adds its own when sending it.
+ * <br><br>
+ * A request also says how urgent it is: its {@link BobikClient.Priority} decides the order in which queued submissions
+ * and status checks are made, and its deadline is how long the job may take before it's aborted on the server.
+ * Neither is sent to Bobik, and neither is part of the request's JSON, so they don't affect equality.
+ * @author Eugene Mirkin
+ */
+public final class ScrapeRequest {
+
+    private final List<String> urls;
+    private final List<String> queries;
+
+    /*
+     * JSON text of every option other than urls and queries, by name
+     */
+    private final Map<String, String> options;
+
+    private final BobikClient.Priority priority;
+    private final long deadlineMs;
+
+    /*
+     * JSON text of the whole request, and of everything but its urls. Keys are sorted, so equal requests have equal JSON.
+     */
+    private final String json;
+    private final String requestKey;
+
+    private ScrapeRequest(List<String> urls, List<String> queries, Map<String, String> options, BobikClient.Priority priority, long deadlineMs) {
+        this.urls = Collections.unmodifiableList(urls);
+        this.queries = Collections.unmodifiableList(queries);
+        this.options = Collections.unmodifiableMap(options);
+        this.priority = priority;
+        this.deadlineMs = deadlineMs;
+        Map<String, String> fields = new TreeMap<String, String>(options);
+        if (!queries.isEmpty())
+            fields.put(BobikConstants.QUERIES_TOKEN_LABEL, toJsonArray(queries));
+        this.requestKey = toJsonObject(fields);
+        if (!urls.isEmpty())
+            fields.put(BobikConstants.URLS_TOKEN_LABEL, toJsonArray(urls));
+        this.json = toJsonObject(fields);
+    }
+
+    /**
+     * Converts a request built as a JSONObject. Any auth token it holds is dropped.
+     * @param request
+     * @return an equivalent ScrapeRequest
+     * @throws JSONException
+     */
+    public static ScrapeRequest fromJSONObject(JSONObject request) throws JSONException {
+        Builder builder = new Builder();
+        for (Iterator<?> i=request.keys(); i.hasNext(); ) {
+            String key = (String)i.next();
+            Object value = request.get(key);
+            if (key.equals(BobikConstants.URLS_TOKEN_LABEL))
+                builder.urls.addAll(toStrings(value));
+            else if (key.equals(BobikConstants.QUERIES_TOKEN_LABEL))
+                builder.queries.addAll(toStrings(value));
+            else if (!key.equals(BobikConstants.AUTH_TOKEN_LABEL))
+                builder.options.put(key, BobikHelper.canonicalJson(value));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param urls
+     * @return a request with the same queries and options as this one, for different urls
+     */
+    public ScrapeRequest withUrls(Collection<String> urls) {
+        return new ScrapeRequest(new ArrayList<String>(urls), queries, options, priority, deadlineMs);
+    }
+
+    /**
+     * @param priority
+     * @return the same request, with a different priority
+     */
+    public ScrapeRequest withPriority(BobikClient.Priority priority) {
+        return new ScrapeRequest(urls, queries, options, priority, deadlineMs);
+    }
+
+    /**
+     * @param deadlineMs see {@link Builder#setDeadlineMs(long)}
+     * @return the same request, with a different deadline
+     */
+    public ScrapeRequest withDeadlineMs(long deadlineMs) {
+        return new ScrapeRequest(urls, queries, options, priority, deadlineMs);
+    }
+
+    /**
+     * @return a new JSONObject holding this request, for APIs that still take one
+     * @throws JSONException
+     */
+    public JSONObject toJSONObject() throws JSONException {
+        return new JSONObject(json);
+    }
+
+    public List<String> getUrls() {
+        return urls;
+    }
+    public List<String> getQueries() {
+        return queries;
+    }
+    /**
+     * @param name
+     * @return JSON text of the option, or null if it isn't set
+     */
+    public String getOption(String name) {
+        return options.get(name);
+    }
+    public BobikClient.Priority getPriority() {
+        return priority;
+    }
+    /**
+     * @return ms the job may take, counting from the call to scrape(), or 0 if it has no deadline
+     */
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    /**
+     * @return JSON text of the request, computed once
+     */
+    public String toJson() {
+        return json;
+    }
+
+    /**
+     * @return JSON text of everything in the request but its urls, with queries always written as an array.
+     * {@link ResultCache#getRequestKey(JSONObject)} returns the same key for the request's JSONObject form.
+     */
+    String getRequestKey() {
+        return requestKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ScrapeRequest && json.equals(((ScrapeRequest)o).json);
+    }
+
+    @Override
+    public int hashCode() {
+        return json.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+
+    private static List<String> toStrings(Object value) throws JSONException {
+        List<String> strings = new ArrayList<String>();
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray)value;
+            for (int i=0; i<array.length(); i++)
+                strings.add(array.getString(i));
+        } else {
+            strings.add(value.toString());
+        }
+        return strings;
+    }
+
+    private static String toJsonArray(List<String> strings) {
+        StringBuilder sb = new StringBuilder(strings.size() * 32);
+        sb.append('[');
+        for (int i=0; i<strings.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(JSONObject.quote(strings.get(i)));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String toJsonObject(Map<String, String> fields) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (sb.length() > 1)
+                sb.append(',');
+            sb.append(JSONObject.quote(field.getKey())).append(':').append(field.getValue());
+        }
+        return sb.append('}').toString();
+    }
+
+
+    /**
+     * Collects the parts of a ScrapeRequest. Not thread-safe; the requests it builds are.
+     */
+    public static class Builder {
+        private final List<String> urls = new ArrayList<String>();
+        private final List<String> queries = new ArrayList<String>();
+        private final Map<String, String> options = new TreeMap<String, String>();
+        private BobikClient.Priority priority = BobikClient.Priority.NORMAL;
+        private long deadlineMs = 0;
+
+        public Builder addUrl(String url) {
+            urls.add(url);
+            return this;
+        }
+        public Builder addUrls(Collection<String> urls) {
+            this.urls.addAll(urls);
+            return this;
+        }
+        public Builder addQuery(String query) {
+            queries.add(query);
+            return this;
+        }
+        public Builder addQueries(Collection<String> queries) {
+            this.queries.addAll(queries);
+            return this;
+        }
+
+        /**
+         * @param name any request field other than urls, queries and the auth token, e.g. query_set
+         * @param value a String, Number, Boolean, JSONObject, JSONArray or Collection. Its current state is copied.
+         * @return this
+         * @throws IllegalArgumentException if the name is reserved or the value can't be written as JSON
+         */
+        public Builder setOption(String name, Object value) {
+            if (name.equals(BobikConstants.URLS_TOKEN_LABEL) || name.equals(BobikConstants.QUERIES_TOKEN_LABEL)
+                    || name.equals(BobikConstants.AUTH_TOKEN_LABEL))
+                throw new IllegalArgumentException("Option name is reserved: " + name);
+            try {
+                options.put(name, BobikHelper.canonicalJson(value instanceof Collection ? new JSONArray((Collection)value) : value));
+            } catch (JSONException e) {
+                throw new IllegalArgumentException("Can't write option " + name + " as JSON: " + e.getMessage());
+            }
+            return this;
+        }
+
+        /**
+         * @param priority HIGH for interactive lookups that shouldn't wait behind bulk work, LOW for the bulk work itself
+         * @return this
+         */
+        public Builder setPriority(BobikClient.Priority priority) {
+            this.priority = priority == null ? BobikClient.Priority.NORMAL : priority;
+            return this;
+        }
+
+        /**
+         * @param deadlineMs ms the job may take, counting from the call to scrape(), time spent waiting to be submitted included.
+         * A job still running past its deadline is aborted on the server and fails. 0 (default) means no deadline:
+         * the job is monitored for as long as it runs.
+         * @return this
+         */
+        public Builder setDeadlineMs(long deadlineMs) {
+            this.deadlineMs = Math.max(0, deadlineMs);
+            return this;
+        }
+
+        public ScrapeRequest build() {
+            return new ScrapeRequest(new ArrayList<String>(urls), new ArrayList<String>(queries), new TreeMap<String, String>(options),
+                    priority, deadlineMs);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package bobik;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The immutable results of a finished job: for every url, the values each query found on it.
+ * <br><br>
+ * Results fetched with {@link BobikClient#fetchResult(String)} are parsed straight off the wire into this form,
+ * without building a JSONObject tree first. Single values are read as one-element lists, so that every query maps to a list.
+ * Values are Strings, Numbers, Booleans or JSONObject.NULL (or, for queries that return structured data, JSONObjects and JSONArrays).
+ * <br><br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+    ScrapeResult result = bobik.fetchResult(job.id());
+    for (String url : result.getUrls())
+        System.out.println(url + ": " + result.getValues(url, "//a/@href"));
+ * }
+ * </pre>
+ * Data scraped for a url that isn't keyed by query is filed under the query "".
+ * @author Eugene Mirkin
+ */
+public final class ScrapeResult {
+
+    private final String jobId;
+    private final List<String> errors;
+    private final Map<String, Map<String, List<Object>>> data;
+
+    private ScrapeResult(String jobId, List<String> errors, Map<String, Map<String, List<Object>>> data) {
+        this.jobId = jobId;
+        this.errors = Collections.unmodifiableList(errors);
+        this.data = Collections.unmodifiableMap(data);
+    }
+
+    /**
+     * Reads a job status response that includes results
+     * @param job_id
+     * @param in the response body
+     * @return results
+     * @throws IOException
+     * @throws JSONException if the response is malformed
+     */
+    static ScrapeResult read(String job_id, Reader in) throws IOException, JSONException {
+        List<String> errors = new ArrayList<String>();
+        Map<String, Map<String, List<Object>>> data = new LinkedHashMap<String, Map<String, List<Object>>>();
+        JsonStreamReader reader = new JsonStreamReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(BobikConstants.RESULTS_TOKEN_LABEL)) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String url = reader.nextName();
+                        data.put(url, readUrlData(reader));
+                    }
+                    reader.endObject();
+                } else if (name.equals(BobikConstants.ERROR_TOKEN_LABEL)) {
+                    for (Object error : toList(reader.readValue()))
+                        errors.add(String.valueOf(error));
+                } else if (name.equals(BobikConstants.JOB_TOKEN_LABEL) && job_id == null) {
+                    job_id = String.valueOf(reader.readValue());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        return new ScrapeResult(job_id, errors, data);
+    }
+
+    private static Map<String, List<Object>> readUrlData(JsonStreamReader reader) throws IOException, JSONException {
+        Map<String, List<Object>> queries = new LinkedHashMap<String, List<Object>>();
+        if (reader.peekValue() != '{') {
+            queries.put("", toList(reader.readValue()));
+            return Collections.unmodifiableMap(queries);
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String query = reader.nextName();
+            List<Object> values;
+            if (reader.peekValue() == '[') {
+                values = new ArrayList<Object>();
+                reader.beginArray();
+                while (reader.hasNext())
+                    values.add(reader.readValue());
+                reader.endArray();
+            } else {
+                values = Collections.singletonList(reader.readValue());
+            }
+            queries.put(query, Collections.unmodifiableList(values));
+        }
+        reader.endObject();
+        return Collections.unmodifiableMap(queries);
+    }
+
+    /**
+     * Converts results delivered to a JobListener
+     * @param job_id
+     * @param scraped_data results, keyed by url
+     * @return an equivalent ScrapeResult, with no errors
+     * @throws JSONException
+     */
+    public static ScrapeResult fromJSONObject(String job_id, JSONObject scraped_data) throws JSONException {
+        Map<String, Map<String, List<Object>>> data = new LinkedHashMap<String, Map<String, List<Object>>>();
+        for (Iterator<?> i=scraped_data.keys(); i.hasNext(); ) {
+            String url = (String)i.next();
+            Object url_data = scraped_data.get(url);
+            Map<String, List<Object>> queries = new LinkedHashMap<String, List<Object>>();
+            if (url_data instanceof JSONObject) {
+                JSONObject by_query = (JSONObject)url_data;
+                for (Iterator<?> q=by_query.keys(); q.hasNext(); ) {
+                    String query = (String)q.next();
+                    queries.put(query, Collections.unmodifiableList(toList(by_query.get(query))));
+                }
+            } else {
+                queries.put("", Collections.unmodifiableList(toList(url_data)));
+            }
+            data.put(url, Collections.unmodifiableMap(queries));
+        }
+        return new ScrapeResult(job_id, new ArrayList<String>(), data);
+    }
+
+    /**
+     * @return a new JSONObject holding these results, in the format passed to {@link JobListener#onSuccess(JSONObject)}
+     * @throws JSONException
+     */
+    public JSONObject toJSONObject() throws JSONException {
+        JSONObject results = new JSONObject();
+        for (Map.Entry<String, Map<String, List<Object>>> url_data : data.entrySet()) {
+            JSONObject by_query = new JSONObject();
+            for (Map.Entry<String, List<Object>> values : url_data.getValue().entrySet())
+                by_query.put(values.getKey(), new JSONArray(values.getValue()));
+            results.put(url_data.getKey(), by_query);
+        }
+        return results;
+    }
+
+    private static List<Object> toList(Object value) throws JSONException {
+        List<Object> values = new ArrayList<Object>();
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray)value;
+            for (int i=0; i<array.length(); i++)
+                values.add(array.get(i));
+        } else {
+            values.add(value);
+        }
+        return values;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+    /**
+     * @return errors Bobik reported along with the results
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+    /**
+     * @return urls, in the order Bobik sent them
+     */
+    public List<String> getUrls() {
+        return new ArrayList<String>(data.keySet());
+    }
+    /**
+     * @param url
+     * @return values found on the url, by query, or null if the url isn't part of the results
+     */
+    public Map<String, List<Object>> get(String url) {
+        return data.get(url);
+    }
+    /**
+     * @param url
+     * @param query
+     * @return values the query found on the url, or an empty list if there are none
+     */
+    public List<Object> getValues(String url, String query) {
+        Map<String, List<Object>> queries = data.get(url);
+        List<Object> values = queries == null ? null : queries.get(query);
+        return values == null ? Collections.<Object>emptyList() : values;
+    }
+    /**
+     * @return all results, by url and query
+     */
+    public Map<String, Map<String, List<Object>>> getData() {
+        return data;
+    }
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ScrapeResult for job " + jobId + ": " + data.size() + " urls, " + errors.size() + " errors";
+    }
+}
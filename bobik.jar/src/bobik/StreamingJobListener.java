@@ -0,0 +1,19 @@
+package bobik;
+
+/**
+ * A JobListener for jobs whose results are too large to be held in memory at once.
+ * Results are parsed incrementally as they arrive from Bobik and handed over one entry at a time,
+ * so memory use stays bounded by the size of the largest entry rather than the whole payload.
+ * <br><br>
+ * Since all data has already been delivered through {@link #onResultRecord(String, Object)},
+ * <i>onSuccess</i> receives an empty object.
+ */
+public abstract class StreamingJobListener extends JobListener {
+
+    /**
+     * Called for every entry in the job's results, in the order Bobik sends them
+     * @param key the url (or query) the entry belongs to
+     * @param record scraped data for that key: a JSONObject, JSONArray, String, Number or Boolean
+     */
+    public abstract void onResultRecord(String key, Object record);
+}
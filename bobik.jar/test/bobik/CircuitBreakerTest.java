@@ -0,0 +1,107 @@
+package bobik;
+
+/**
+ * Checks that a CircuitBreaker opens after a run of failures, lets a single trial call through once it has been open
+ * for long enough, and closes or opens again depending on how the trial went.
+ * Throws an AssertionError on the first mismatch.
+ */
+public class CircuitBreakerTest {
+
+    private static final long OPEN_DURATION_MS = 200;
+
+    public static void main(String[] args) throws Exception {
+        opens();
+        closesAfterTrial();
+        reopensAfterTrial();
+        System.out.println("OK");
+    }
+
+    /**
+     * Only consecutive failures count, and an open circuit fails calls fast
+     */
+    private static void opens() throws Exception {
+        CircuitBreaker breaker = breaker();
+        for (int i=0; i<2; i++) {
+            breaker.acquire();
+            breaker.recordFailure();
+        }
+        breaker.acquire();
+        breaker.recordSuccess();
+        for (int i=0; i<2; i++) {
+            breaker.acquire();
+            breaker.recordFailure();
+        }
+        check(breaker.getState() == CircuitBreaker.State.CLOSED, "opened on failures that weren't consecutive");
+        breaker.acquire();
+        breaker.recordFailure();
+        check(breaker.getState() == CircuitBreaker.State.OPEN, "still " + breaker.getState() + " after 3 failures in a row");
+        check(breaker.getOpened() == 1, "opened " + breaker.getOpened() + " times");
+        check(!allowed(breaker), "call let through an open circuit");
+        check(breaker.getShortCircuited() == 1, "short-circuited " + breaker.getShortCircuited() + " calls");
+    }
+
+    /**
+     * Once the open period is over a single trial call is let through, and its success closes the circuit
+     */
+    private static void closesAfterTrial() throws Exception {
+        CircuitBreaker breaker = opened();
+        Thread.sleep(OPEN_DURATION_MS + 50);
+        check(allowed(breaker), "trial call not let through after the open period");
+        check(breaker.getState() == CircuitBreaker.State.HALF_OPEN, "still " + breaker.getState() + " during the trial call");
+        check(!allowed(breaker), "second call let through during the trial call");
+        breaker.recordSuccess();
+        check(breaker.getState() == CircuitBreaker.State.CLOSED, "still " + breaker.getState() + " after a successful trial");
+        check(allowed(breaker) && allowed(breaker), "calls held back after the circuit closed");
+    }
+
+    /**
+     * A failed trial call opens the circuit for another full period
+     */
+    private static void reopensAfterTrial() throws Exception {
+        CircuitBreaker breaker = opened();
+        Thread.sleep(OPEN_DURATION_MS + 50);
+        check(allowed(breaker), "trial call not let through after the open period");
+        breaker.recordFailure();
+        check(breaker.getState() == CircuitBreaker.State.OPEN, "still " + breaker.getState() + " after a failed trial");
+        check(breaker.getOpened() == 2, "opened " + breaker.getOpened() + " times");
+        check(!allowed(breaker), "call let through right after a failed trial");
+        Thread.sleep(OPEN_DURATION_MS + 50);
+        check(allowed(breaker), "trial call not let through after the second open period");
+        breaker.recordSuccess();
+        check(breaker.getState() == CircuitBreaker.State.CLOSED, "still " + breaker.getState() + " after a successful trial");
+    }
+
+    private static CircuitBreaker breaker() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setFailureThreshold(3);
+        breaker.setOpenDurationMs(OPEN_DURATION_MS);
+        return breaker;
+    }
+
+    private static CircuitBreaker opened() throws Exception {
+        CircuitBreaker breaker = breaker();
+        for (int i=0; i<3; i++) {
+            breaker.acquire();
+            breaker.recordFailure();
+        }
+        check(breaker.getState() == CircuitBreaker.State.OPEN, "still " + breaker.getState() + " after 3 failures in a row");
+        return breaker;
+    }
+
+    /*
+     * Asks for a call without making it
+     */
+    private static boolean allowed(CircuitBreaker breaker) {
+        try {
+            breaker.acquire();
+            return true;
+        } catch (BobikException e) {
+            return false;
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,163 @@
+package bobik;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+/**
+ * Checks that a JobJournal reads back what a previous run left behind, survives a line cut short by a crash,
+ * and stays small however many jobs go through it.
+ * Throws an AssertionError on the first mismatch.
+ */
+public class JobJournalTest {
+
+    public static void main(String[] args) throws Exception {
+        File dir = File.createTempFile("bobik-journal", "");
+        check(dir.delete() && dir.mkdir(), "can't create " + dir);
+        try {
+            replay(new File(dir, "replay.journal"));
+            tornLine(new File(dir, "torn.journal"));
+            progressSteps(new File(dir, "progress.journal"));
+            compaction(new File(dir, "compaction.journal"));
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Unfinished jobs come back in submission order, with their ids, tokens, priorities and progress.
+     * Finished and abandoned ones don't, and neither does the auth token.
+     * @param file
+     */
+    private static void replay(File file) throws Exception {
+        JobJournal journal = new JobJournal(file);
+        String running = journal.submitting(request("http://a.com"), BobikClient.Priority.HIGH, 12345);
+        String finished = journal.submitting(request("http://b.com"), BobikClient.Priority.NORMAL, 0);
+        String abandoned = journal.submitting(request("http://c.com"), BobikClient.Priority.NORMAL, 0);
+        String unanswered = journal.submitting(request("http://d.com"), BobikClient.Priority.LOW, 0);
+        journal.submitted(running, "job1", "token1");
+        journal.submitted(finished, "job2", null);
+        journal.progress("job1", 0.5f);
+        journal.finished("job2");
+        journal.abandoned(abandoned);
+        journal.close();
+
+        List<JobJournal.Entry> jobs = new JobJournal(file).getUnfinishedJobs();
+        check(jobs.size() == 2, "expected 2 unfinished jobs, got " + jobs.size());
+        JobJournal.Entry first = jobs.get(0);
+        check(first.getKey().equals(running), "jobs out of submission order");
+        check("job1".equals(first.getJobId()), "job id " + first.getJobId());
+        check("token1".equals(first.getTokenId()), "token id " + first.getTokenId());
+        check(first.getPriority() == BobikClient.Priority.HIGH, "priority " + first.getPriority());
+        check(first.getDeadline() == 12345, "deadline " + first.getDeadline());
+        check(first.getProgress() == 0.5f, "progress " + first.getProgress());
+        check(!first.getRequest().has(BobikConstants.AUTH_TOKEN_LABEL), "auth token was journalled");
+        check("http://a.com".equals(first.getRequest().getString("urls")), "request " + first.getRequest());
+        JobJournal.Entry second = jobs.get(1);
+        check(second.getKey().equals(unanswered), "unanswered submission missing");
+        check(second.getJobId() == null, "unanswered submission has job id " + second.getJobId());
+        check(second.getPriority() == BobikClient.Priority.LOW, "priority " + second.getPriority());
+    }
+
+    /**
+     * A line cut short by a crash is skipped, and the journal carries on from there
+     * @param file
+     */
+    private static void tornLine(File file) throws Exception {
+        JobJournal journal = new JobJournal(file);
+        String key = journal.submitting(request("http://a.com"), BobikClient.Priority.NORMAL, 0);
+        journal.submitted(key, "job1", null);
+        journal.close();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("{\"op\":\"finished\",\"jo".getBytes("UTF-8"));
+        out.close();
+
+        journal = new JobJournal(file);
+        List<JobJournal.Entry> jobs = journal.getUnfinishedJobs();
+        check(jobs.size() == 1 && "job1".equals(jobs.get(0).getJobId()), "torn line changed the journal: " + jobs.size() + " jobs");
+        journal.finished("job1");
+        journal.close();
+        check(new JobJournal(file).getUnfinishedJobs().isEmpty(), "job finished after a torn line came back");
+    }
+
+    /**
+     * Progress is only written down once it has moved by PROGRESS_STEP
+     * @param file
+     */
+    private static void progressSteps(File file) throws Exception {
+        JobJournal journal = new JobJournal(file);
+        String key = journal.submitting(request("http://a.com"), BobikClient.Priority.NORMAL, 0);
+        journal.submitted(key, "job1", null);
+        int before = countLines(file);
+        for (int i=1; i<=100; i++)
+            journal.progress("job1", i / 1000f);
+        journal.close();
+        int written = countLines(file) - before;
+        check(written == (int)(0.1f / JobJournal.PROGRESS_STEP), "journalled " + written + " progress lines for 10% of progress");
+        float progress = new JobJournal(file).getUnfinishedJobs().get(0).getProgress();
+        check(progress >= 0.1f - JobJournal.PROGRESS_STEP && progress <= 0.1f, "replayed progress " + progress);
+    }
+
+    /**
+     * Many jobs coming and going leave a journal no longer than the compaction threshold,
+     * which still reads back the jobs left running
+     * @param file
+     */
+    private static void compaction(File file) throws Exception {
+        int compact_after = 50;
+        JobJournal journal = new JobJournal(file, compact_after);
+        String key = journal.submitting(request("http://a.com"), BobikClient.Priority.NORMAL, 0);
+        journal.submitted(key, "running", null);
+        journal.progress("running", 0.3f);
+        int longest = 0;
+        for (int i=0; i<1000; i++) {
+            String job_key = journal.submitting(request("http://b.com/" + i), BobikClient.Priority.NORMAL, 0);
+            journal.submitted(job_key, "job" + i, null);
+            journal.progress("job" + i, 0.5f);
+            journal.finished("job" + i);
+            longest = Math.max(longest, countLines(file));
+        }
+        journal.close();
+        // Compacted down to the running job and the one in flight, two lines each, then appended to
+        check(longest <= compact_after + 4, "journal grew to " + longest + " lines");
+
+        List<JobJournal.Entry> jobs = new JobJournal(file).getUnfinishedJobs();
+        check(jobs.size() == 1, "expected 1 unfinished job after compaction, got " + jobs.size());
+        check("running".equals(jobs.get(0).getJobId()), "job id " + jobs.get(0).getJobId());
+        check(jobs.get(0).getProgress() == 0.3f, "progress " + jobs.get(0).getProgress());
+    }
+
+    private static JSONObject request(String url) throws Exception {
+        JSONObject request = new JSONObject();
+        request.put("urls", url);
+        request.put("queries", "//a/@href");
+        request.put(BobikConstants.AUTH_TOKEN_LABEL, "SECRET");
+        return request;
+    }
+
+    private static int countLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null)
+                lines++;
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,159 @@
+package bobik;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+
+/**
+ * Checks that JsonStreamReader parses what org.json does: escapes, nesting and numbers of every size,
+ * and that input cut short anywhere is reported rather than read back as something else.
+ * Throws an AssertionError on the first mismatch.
+ */
+public class JsonStreamReaderTest {
+
+    public static void main(String[] args) throws Exception {
+        escapes();
+        nesting();
+        numbers();
+        truncated();
+        System.out.println("OK");
+    }
+
+    /**
+     * Every escape in strings and names, including unicode escapes
+     */
+    private static void escapes() throws Exception {
+        String json = "{\"a\\tb\": \"q\\\"b\\\\s\\/ \\b\\f\\n\\r\\t \\u00e9\\u20AC\\ud83d\\ude00\"}";
+        JsonStreamReader reader = reader(json);
+        reader.beginObject();
+        check(reader.hasNext(), "object looks empty");
+        check("a\tb".equals(reader.nextName()), "escaped name");
+        String value = (String)reader.readValue();
+        check(value.equals("q\"b\\s/ \b\f\n\r\t \u00e9\u20ac\ud83d\ude00"), "escaped string read back as " + value);
+        check(!reader.hasNext(), "object has an extra member");
+        reader.endObject();
+
+        check(fails("\"\\u00g0\""), "bad unicode escape accepted");
+        check(fails("\"\\u00\""), "short unicode escape accepted");
+    }
+
+    /**
+     * Nested objects and arrays come out whole from readValue, skipValue steps over them
+     * (brackets inside strings included), and the reader carries on after either one
+     */
+    private static void nesting() throws Exception {
+        String nested = "{\"a\": [1, {\"b\": [[], {}, \"]}\"]}, null], \"c\": {\"d\": {\"e\": [true, false]}}}";
+        String json = "{\"first\": " + nested + ", \"skipped\": " + nested + ", \"last\": \"x\"}";
+        JsonStreamReader reader = reader(json);
+        reader.beginObject();
+        check(reader.hasNext() && "first".equals(reader.nextName()), "first name");
+        check(reader.peekValue() == '{', "peeked " + (char)reader.peekValue());
+        JSONObject first = (JSONObject)reader.readValue();
+        check(first.toString().equals(new JSONObject(nested).toString()), "nested value read back as " + first);
+        check(reader.hasNext() && "skipped".equals(reader.nextName()), "second name");
+        reader.skipValue();
+        check(reader.hasNext() && "last".equals(reader.nextName()), "value after a skipped one");
+        check("x".equals(reader.readValue()), "last value");
+        check(!reader.hasNext(), "object has an extra member");
+        reader.endObject();
+
+        reader = reader("[[1, 2], [], [3]]");
+        reader.beginArray();
+        int count = 0;
+        while (reader.hasNext()) {
+            reader.beginArray();
+            while (reader.hasNext())
+                count += (Integer)reader.readValue();
+            reader.endArray();
+        }
+        reader.endArray();
+        check(count == 6, "walked arrays summed up to " + count);
+    }
+
+    /**
+     * Numbers come back as the narrowest type that holds them, integers too long for a long included
+     */
+    private static void numbers() throws Exception {
+        JSONArray numbers = (JSONArray)reader("[0, -7, 2147483647, 2147483648, -9223372036854775808, 9223372036854775808,"
+                + " -123456789012345678901234567890, 1.5, -2e3, 6.02E23]").readValue();
+        check(Integer.valueOf(0).equals(numbers.get(0)), "0 read back as " + numbers.get(0));
+        check(Integer.valueOf(-7).equals(numbers.get(1)), "-7 read back as " + numbers.get(1));
+        check(Integer.valueOf(Integer.MAX_VALUE).equals(numbers.get(2)), "int max read back as " + numbers.get(2));
+        check(Long.valueOf(2147483648L).equals(numbers.get(3)), "int max + 1 read back as " + numbers.get(3));
+        check(Long.valueOf(Long.MIN_VALUE).equals(numbers.get(4)), "long min read back as " + numbers.get(4));
+        check(new BigInteger("9223372036854775808").equals(numbers.get(5)), "long max + 1 read back as " + numbers.get(5));
+        check(new BigInteger("-123456789012345678901234567890").equals(numbers.get(6)), "huge negative read back as " + numbers.get(6));
+        check(Double.valueOf(1.5).equals(numbers.get(7)), "1.5 read back as " + numbers.get(7));
+        check(Double.valueOf(-2000).equals(numbers.get(8)), "-2e3 read back as " + numbers.get(8));
+        check(Double.valueOf(6.02e23).equals(numbers.get(9)), "6.02E23 read back as " + numbers.get(9));
+        check(numbers.toString().contains("9223372036854775808"), "huge number written out as " + numbers);
+
+        check(fails("[1-2]"), "1-2 accepted");
+        check(fails("[tru]"), "tru accepted");
+        check(fails("[-]"), "lone minus accepted");
+    }
+
+    /**
+     * A document cut short at any point fails to parse, whether read or skipped
+     */
+    private static void truncated() throws Exception {
+        String json = "{\"a\": [1, \"two\", {\"three\": 3.5}, true, null], \"b\\u0041\": \"c\"}";
+        check(!fails(json), "whole document rejected");
+        for (int i=0; i<json.length(); i++) {
+            String cut = json.substring(0, i);
+            check(fails(cut), "accepted a document cut short at " + i + ": " + cut);
+            check(skipFails(cut), "skipped a document cut short at " + i + ": " + cut);
+        }
+    }
+
+    /*
+     * Reads the document as a single value
+     */
+    private static boolean fails(String json) throws IOException {
+        try {
+            reader(json).readValue();
+            return false;
+        } catch (JSONException e) {
+            return true;
+        }
+    }
+
+    /*
+     * Walks the members of an object document, skipping over their values
+     */
+    private static boolean skipFails(String json) throws IOException {
+        try {
+            JsonStreamReader reader = reader(json);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                reader.nextName();
+                reader.skipValue();
+            }
+            reader.endObject();
+            return false;
+        } catch (JSONException e) {
+            return true;
+        }
+    }
+
+    /*
+     * Hands out one character per read, so that every character sits on a buffer boundary
+     */
+    private static JsonStreamReader reader(String json) {
+        return new JsonStreamReader(new StringReader(json) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 1));
+            }
+        });
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,97 @@
+package bobik;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that a RateLimiter hands out its burst at once, refills at its rate and no faster,
+ * and keeps permits for more urgent callers that are already waiting.
+ * Throws an AssertionError on the first mismatch.
+ */
+public class RateLimiterTest {
+
+    public static void main(String[] args) throws Exception {
+        burst();
+        refill();
+        priorities();
+        System.out.println("OK");
+    }
+
+    /**
+     * A fresh limiter has its whole burst available, and an idle one saves up no more than that
+     */
+    private static void burst() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 5);
+        for (int i=0; i<5; i++)
+            check(limiter.tryAcquire(), "permit " + i + " of the burst not available");
+        check(!limiter.tryAcquire(), "permit available beyond the burst");
+        check(!limiter.hasPermit(), "hasPermit with an empty bucket");
+        Thread.sleep(1000);
+        int available = 0;
+        while (limiter.tryAcquire())
+            available++;
+        check(available == 5, available + " permits saved up while idle, burst is 5");
+        check(limiter.getAcquired() == 10, "counted " + limiter.getAcquired() + " permits");
+    }
+
+    /**
+     * With the bucket empty, permits come at the sustained rate, and only the waited-for ones count as throttled
+     */
+    private static void refill() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 1);
+        limiter.acquire();
+        long start = System.nanoTime();
+        for (int i=0; i<10; i++)
+            limiter.acquire();
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        check(elapsedMs >= 450, "10 permits at 20/s came in " + elapsedMs + "ms");
+        check(elapsedMs < 2000, "10 permits at 20/s took " + elapsedMs + "ms");
+        check(limiter.getThrottled() == 10, "counted " + limiter.getThrottled() + " throttled permits");
+
+        Thread.sleep(120);
+        check(limiter.tryAcquire(), "no permit refilled after 120ms at 20/s");
+    }
+
+    /**
+     * Callers of HIGH priority that start waiting after LOW ones still get their permits first
+     */
+    private static void priorities() throws Exception {
+        final RateLimiter limiter = new RateLimiter(5, 1);
+        check(limiter.tryAcquire(), "first permit not available");
+        final List<BobikClient.Priority> order = Collections.synchronizedList(new ArrayList<BobikClient.Priority>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (BobikClient.Priority priority : new BobikClient.Priority[]{BobikClient.Priority.LOW, BobikClient.Priority.HIGH}) {
+            for (int i=0; i<3; i++) {
+                final BobikClient.Priority p = priority;
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            limiter.acquire(p);
+                            order.add(p);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            // Low priority callers are all waiting before the first high priority one arrives
+            Thread.sleep(50);
+        }
+        for (Thread thread : threads)
+            thread.join(10000);
+        check(order.size() == 6, "only " + order.size() + " callers got a permit");
+        for (int i=0; i<6; i++) {
+            BobikClient.Priority expected = i < 3 ? BobikClient.Priority.HIGH : BobikClient.Priority.LOW;
+            check(order.get(i) == expected, "permits handed out in order " + order);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,90 @@
+package bobik;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Checks that a request gets the same cache key however it is written: as a JSONObject or a ScrapeRequest,
+ * with a single query or an array of them, with or without an auth token, and with options in any order.
+ * Throws an AssertionError on the first mismatch.
+ */
+public class ResultCacheTest {
+
+    public static void main(String[] args) throws Exception {
+        sameKeys();
+        differentKeys();
+        sharedEntries();
+        System.out.println("OK");
+    }
+
+    /**
+     * Spellings of one request that must share a key
+     */
+    private static void sameKeys() throws Exception {
+        ScrapeRequest built = new ScrapeRequest.Builder()
+                .addUrl("http://a.com")
+                .addQuery("//a/@href")
+                .setOption("query_set", "links")
+                .setOption("wait", new JSONObject().put("ms", 100).put("for", "load"))
+                .build();
+        String key = built.getRequestKey();
+
+        JSONObject lone = new JSONObject();
+        lone.put("urls", "http://b.com");
+        lone.put("queries", "//a/@href");
+        lone.put("wait", new JSONObject().put("for", "load").put("ms", 100));
+        lone.put("query_set", "links");
+        lone.put(BobikConstants.AUTH_TOKEN_LABEL, "SECRET");
+        check(key.equals(ResultCache.getRequestKey(lone)), "lone query: " + ResultCache.getRequestKey(lone) + " vs " + key);
+
+        JSONObject array = new JSONObject(lone.toString());
+        array.put("queries", new JSONArray(Arrays.asList("//a/@href")));
+        array.put("urls", new JSONArray(Arrays.asList("http://c.com", "http://d.com")));
+        array.remove(BobikConstants.AUTH_TOKEN_LABEL);
+        check(key.equals(ResultCache.getRequestKey(array)), "array of queries: " + ResultCache.getRequestKey(array) + " vs " + key);
+
+        check(key.equals(ResultCache.getRequestKey(built.toJSONObject())), "request's own JSONObject: " + ResultCache.getRequestKey(built.toJSONObject()));
+        check(key.equals(ScrapeRequest.fromJSONObject(lone).getRequestKey()), "converted request: " + ScrapeRequest.fromJSONObject(lone).getRequestKey());
+        check(key.equals(built.withUrls(Arrays.asList("http://e.com")).getRequestKey()), "other urls changed the key");
+
+        JSONObject no_queries = new JSONObject().put("urls", "http://a.com").put("query_set", "links");
+        JSONObject empty_queries = new JSONObject(no_queries.toString()).put("queries", new JSONArray());
+        check(ResultCache.getRequestKey(no_queries).equals(ResultCache.getRequestKey(empty_queries)), "empty array of queries: "
+                + ResultCache.getRequestKey(empty_queries) + " vs " + ResultCache.getRequestKey(no_queries));
+        check(ResultCache.getRequestKey(no_queries).equals(new ScrapeRequest.Builder().setOption("query_set", "links").build().getRequestKey()),
+                "no queries: " + ResultCache.getRequestKey(no_queries));
+    }
+
+    /**
+     * Requests that differ in anything but their urls must not share a key
+     */
+    private static void differentKeys() throws Exception {
+        JSONObject request = new JSONObject().put("urls", "http://a.com").put("queries", "//a/@href");
+        String key = ResultCache.getRequestKey(request);
+        JSONObject other_query = new JSONObject(request.toString()).put("queries", "//img/@src");
+        check(!key.equals(ResultCache.getRequestKey(other_query)), "different queries share a key");
+        JSONObject more_queries = new JSONObject(request.toString()).put("queries", new JSONArray(Arrays.asList("//a/@href", "//img/@src")));
+        check(!key.equals(ResultCache.getRequestKey(more_queries)), "extra query shares a key");
+        JSONObject option = new JSONObject(request.toString()).put("query_set", "links");
+        check(!key.equals(ResultCache.getRequestKey(option)), "extra option shares a key");
+    }
+
+    /**
+     * Data put under one spelling of a request is found under another, for the same url spelled differently
+     */
+    private static void sharedEntries() throws Exception {
+        ResultCache cache = new ResultCache(10, 60 * 1000);
+        JSONObject lone = new JSONObject().put("urls", "http://a.com").put("queries", "//a/@href");
+        ScrapeRequest built = new ScrapeRequest.Builder().addUrl("http://a.com").addQuery("//a/@href").build();
+        cache.put("HTTP://A.com/", ResultCache.getRequestKey(lone), "data");
+        check("data".equals(cache.get("http://a.com", built.getRequestKey())), "entry not shared between spellings");
+        check(cache.getHits() == 1 && cache.getMisses() == 0, "hits " + cache.getHits() + ", misses " + cache.getMisses());
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,161 @@
+package bobik;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that a ResultStore reads back what it stored, across reopens, segment rollovers and a record torn by a crash.
+ * Throws an AssertionError on the first mismatch.
+ */
+public class ResultStoreTest {
+
+    public static void main(String[] args) throws Exception {
+        File dir = File.createTempFile("bobik-store", "");
+        check(dir.delete() && dir.mkdir(), "can't create " + dir);
+        try {
+            reopen(new File(dir, "reopen"));
+            tornRecord(new File(dir, "torn"));
+            rollover(new File(dir, "rollover"));
+            readsBetweenAppends(new File(dir, "interleaved"));
+        } finally {
+            delete(dir);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Every kind of value comes back the same after the store is closed and opened again, along with the order
+     * of jobs and urls
+     * @param dir
+     */
+    private static void reopen(File dir) throws Exception {
+        ResultStore store = new ResultStore(dir);
+        JSONObject first = new JSONObject();
+        first.put("http://a.com", new JSONObject().put("//a/@href", new JSONArray(Arrays.asList("x", "y"))));
+        first.put("http://b.com", new JSONArray(Arrays.asList(1, 2, 3)));
+        store.put("job1", first);
+        store.put("job2", "http://c.com", "caf\u00e9 \"quoted\"");
+        store.put("job2", "http://d.com", 42);
+        store.put("job2", "http://a.com", true);
+        store.close();
+
+        store = new ResultStore(dir);
+        try {
+            check(store.getJobIds().equals(Arrays.asList("job1", "job2")), "job ids " + store.getJobIds());
+            check(store.getUrls("job2").equals(Arrays.asList("http://c.com", "http://d.com", "http://a.com")), "urls " + store.getUrls("job2"));
+            check(store.getJob("job1").toString().equals(first.toString()), "job1 read back as " + store.getJob("job1"));
+            check("caf\u00e9 \"quoted\"".equals(store.get("job2", "http://c.com")), "string read back as " + store.get("job2", "http://c.com"));
+            check(Integer.valueOf(42).equals(store.get("job2", "http://d.com")), "number read back as " + store.get("job2", "http://d.com"));
+            check(Boolean.TRUE.equals(store.getLatest("http://a.com")), "latest read back as " + store.getLatest("http://a.com"));
+            check(store.get("job1", "http://c.com") == null, "job1 has data it never stored");
+            check(store.getJob("job2", 1, 1).length() == 1 && store.getJob("job2", 1, 1).has("http://d.com"), "page " + store.getJob("job2", 1, 1));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * A record cut short by a crash is dropped on the next open, along with nothing else, and the next append takes its place
+     * @param dir
+     */
+    private static void tornRecord(File dir) throws Exception {
+        ResultStore store = new ResultStore(dir);
+        store.put("job1", "http://a.com", "first");
+        store.put("job1", "http://b.com", "second");
+        long intact = store.getSizeBytes();
+        store.close();
+        File segment = dir.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(intact);
+        file.writeInt(100);
+        file.writeShort(4);
+        file.write("jo".getBytes("UTF-8"));
+        file.close();
+
+        store = new ResultStore(dir);
+        check(store.getSizeBytes() == intact, "torn record left " + (store.getSizeBytes() - intact) + " bytes behind");
+        check(segment.length() == intact, "torn record wasn't cut off the segment");
+        check(store.getUrls("job1").equals(Arrays.asList("http://a.com", "http://b.com")), "urls " + store.getUrls("job1"));
+        check("second".equals(store.get("job1", "http://b.com")), "last intact record read back as " + store.get("job1", "http://b.com"));
+        store.put("job2", "http://c.com", "third");
+        store.close();
+
+        store = new ResultStore(dir);
+        try {
+            check("third".equals(store.get("job2", "http://c.com")), "record appended after recovery read back as " + store.get("job2", "http://c.com"));
+            check("first".equals(store.get("job1", "http://a.com")), "record before the torn one read back as " + store.get("job1", "http://a.com"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Small segments roll over into new files, and records are found in whichever segment they landed in,
+     * before and after a reopen. A record larger than a segment gets a segment of its own.
+     * @param dir
+     */
+    private static void rollover(File dir) throws Exception {
+        ResultStore store = new ResultStore(dir, 256);
+        List<String> urls = new ArrayList<String>();
+        for (int i=0; i<50; i++) {
+            urls.add("http://a.com/" + i);
+            store.put("job1", urls.get(i), "value " + i);
+        }
+        char[] large = new char[1000];
+        Arrays.fill(large, 'x');
+        store.put("job2", "http://large.com", new String(large));
+        for (int i=0; i<50; i++)
+            check(("value " + i).equals(store.get("job1", urls.get(i))), "record " + i + " read back as " + store.get("job1", urls.get(i)));
+        store.close();
+        check(dir.listFiles().length > 1, "50 records didn't roll over into a second segment");
+
+        store = new ResultStore(dir, 256);
+        try {
+            check(store.getUrls("job1").equals(urls), "urls out of order after reopen");
+            for (int i=0; i<50; i++)
+                check(("value " + i).equals(store.get("job1", urls.get(i))), "record " + i + " read back as " + store.get("job1", urls.get(i)) + " after reopen");
+            check(new String(large).equals(store.get("job2", "http://large.com")), "oversized record didn't survive");
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Reading every record right after appending it, then all of them again, which maps the segment bit by bit
+     * @param dir
+     */
+    private static void readsBetweenAppends(File dir) throws Exception {
+        ResultStore store = new ResultStore(dir);
+        try {
+            for (int i=0; i<2000; i++) {
+                store.put("job1", "http://a.com/" + i, i);
+                check(Integer.valueOf(i).equals(store.get("job1", "http://a.com/" + i)), "record " + i + " read back as " + store.get("job1", "http://a.com/" + i));
+            }
+            for (int i=0; i<2000; i++)
+                check(Integer.valueOf(i).equals(store.get("job1", "http://a.com/" + i)), "record " + i + " read back as " + store.get("job1", "http://a.com/" + i) + " later on");
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
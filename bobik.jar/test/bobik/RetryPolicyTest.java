@@ -0,0 +1,95 @@
+package bobik;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Checks which failures a RetryPolicy retries, that its backoff stays within the exponential ceiling with full jitter,
+ * and that Retry-After is honoured.
+ * Throws an AssertionError on the first mismatch.
+ */
+public class RetryPolicyTest {
+
+    private static final int SAMPLES = 2000;
+
+    public static void main(String[] args) throws Exception {
+        retryable();
+        backoff();
+        retryAfter();
+        System.out.println("OK");
+    }
+
+    /**
+     * GETs are retried on any network error, 429 and 5xx; POSTs only when no job can have been created
+     */
+    private static void retryable() {
+        RetryPolicy policy = new RetryPolicy();
+        check(policy.backoffMs("GET", 1, new SocketTimeoutException()) >= 0, "GET not retried after a read timeout");
+        check(policy.backoffMs("GET", 1, http(500)) >= 0, "GET not retried after 500");
+        check(policy.backoffMs("GET", 1, http(429)) >= 0, "GET not retried after 429");
+        check(policy.backoffMs("GET", 1, http(404)) < 0, "GET retried after 404");
+        check(policy.backoffMs("POST", 1, new ConnectException()) >= 0, "POST not retried when it couldn't connect");
+        check(policy.backoffMs("POST", 1, http(503)) >= 0, "POST not retried after 503");
+        check(policy.backoffMs("POST", 1, new SocketTimeoutException()) < 0, "POST retried after a read timeout");
+        check(policy.backoffMs("POST", 1, http(500)) < 0, "POST retried after 500");
+        check(policy.backoffMs("POST", 1, new IOException()) < 0, "POST retried after an unknown network error");
+        check(policy.getNotRetryable() == 4, "counted " + policy.getNotRetryable() + " calls as not retryable");
+        check(policy.getRetries() == 5, "counted " + policy.getRetries() + " retries");
+    }
+
+    /**
+     * Each retry waits somewhere between 0 and base * 2^(attempt - 1), capped at the max backoff,
+     * spread over the whole range. The last attempt isn't retried.
+     */
+    private static void backoff() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxAttempts(6);
+        policy.setBaseBackoffMs(100);
+        policy.setMaxBackoffMs(1000);
+        long[] ceilings = {100, 200, 400, 800, 1000};
+        for (int attempt=1; attempt<=ceilings.length; attempt++) {
+            long ceiling = ceilings[attempt - 1];
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i=0; i<SAMPLES; i++) {
+                long backoff = policy.backoffMs("GET", attempt, http(503));
+                check(backoff >= 0 && backoff < ceiling, "attempt " + attempt + " backed off " + backoff + "ms, ceiling " + ceiling + "ms");
+                min = Math.min(min, backoff);
+                max = Math.max(max, backoff);
+            }
+            // Full jitter: the samples reach close to both ends of the range
+            check(min < ceiling / 10, "attempt " + attempt + " never backed off less than " + min + "ms");
+            check(max >= ceiling * 9 / 10, "attempt " + attempt + " never backed off more than " + max + "ms");
+        }
+        check(policy.backoffMs("GET", 6, http(503)) < 0, "retried past max attempts");
+        check(policy.getExhausted() == 1, "counted " + policy.getExhausted() + " exhausted calls");
+
+        policy.setMaxAttempts(100);
+        check(policy.backoffMs("GET", 80, http(503)) < 1000, "backoff overflowed for a late attempt");
+    }
+
+    /**
+     * Retry-After is a lower bound on the backoff, unless it asks for more than max retry-after, in which case the call fails
+     */
+    private static void retryAfter() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBaseBackoffMs(100);
+        policy.setMaxRetryAfterMs(5000);
+        for (int i=0; i<SAMPLES; i++) {
+            long backoff = policy.backoffMs("GET", 1, new BobikHttpException(429, 3000, "Too Many Requests"));
+            check(backoff == 3000, "backed off " + backoff + "ms when asked for 3000ms");
+        }
+        check(policy.backoffMs("POST", 1, new BobikHttpException(503, 6000, "Service Unavailable")) < 0,
+                "retried when asked to wait longer than max retry-after");
+    }
+
+    private static BobikHttpException http(int statusCode) {
+        return new BobikHttpException(statusCode, -1, "HTTP " + statusCode);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
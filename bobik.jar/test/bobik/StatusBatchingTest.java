@@ -0,0 +1,230 @@
+package bobik;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks batched status checks against a local stand-in for the Bobik API: the shape of the request the client sends,
+ * the shape of the response it expects back, and that each job's listener hears about its own progress.
+ * Throws an AssertionError on the first mismatch.
+ */
+public class StatusBatchingTest {
+
+    private static final String TOKEN = "TEST_TOKEN";
+    private static final int JOBS = 5;
+    private static final long JOB_DURATION_MS = 1500;
+
+    public static void main(String[] args) throws Exception {
+        StandInServer server = new StandInServer();
+        BobikClient bobik = new BobikClient(TOKEN);
+        bobik.setApiUrl(server.getUrl());
+        bobik.setStatusBatchWindowMs(300);
+        try {
+            List<String> job_ids = fanOut(bobik);
+            requestShape(server, job_ids);
+            responseShape(bobik, job_ids);
+        } finally {
+            bobik.close();
+            server.stop();
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Runs a few jobs at once and checks that each of them is told about its own progress and results
+     * @param bobik
+     * @return ids of the jobs
+     */
+    private static List<String> fanOut(BobikClient bobik) throws Exception {
+        final CountDownLatch done = new CountDownLatch(JOBS);
+        List<Job> jobs = new ArrayList<Job>();
+        final List<AtomicInteger> progress_reports = new ArrayList<AtomicInteger>();
+        final List<String> errors = new ArrayList<String>();
+        for (int i=0; i<JOBS; i++) {
+            final AtomicInteger reports = new AtomicInteger();
+            progress_reports.add(reports);
+            JSONObject request = new JSONObject();
+            request.accumulate("urls", "http://example.com/" + i);
+            request.accumulate("queries", "//a/@href");
+            jobs.add(bobik.scrape(request, new JobListener() {
+                @Override
+                public void onSuccess(JSONObject scraped_data) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onProgress(float currentProgress) {
+                    reports.incrementAndGet();
+                }
+
+                @Override
+                public void onErrors(Collection<String> job_errors) {
+                    synchronized (errors) {
+                        errors.addAll(job_errors);
+                    }
+                }
+            }));
+        }
+        check(done.await(30, TimeUnit.SECONDS), "jobs didn't finish in time");
+        check(errors.isEmpty(), "jobs reported errors: " + errors);
+        List<String> job_ids = new ArrayList<String>();
+        for (int i=0; i<JOBS; i++) {
+            check(progress_reports.get(i).get() > 0, "job " + jobs.get(i).id() + " never heard about its progress");
+            job_ids.add(jobs.get(i).id());
+        }
+        return job_ids;
+    }
+
+    /**
+     * Every batched status check is a GET carrying the auth token, no_results=true and a comma-separated list
+     * of known job ids, and nothing else. At least one of them covers several jobs.
+     * @param server
+     * @param job_ids
+     */
+    private static void requestShape(StandInServer server, List<String> job_ids) {
+        List<Map<String, String>> requests = server.getBatchedStatusRequests();
+        check(!requests.isEmpty(), "no batched status checks were made");
+        Set<String> expected_params = new HashSet<String>(Arrays.asList(
+                BobikConstants.AUTH_TOKEN_LABEL, BobikConstants.JOBS_TOKEN_LABEL, BobikConstants.SKIP_DATA_TOKEN_LABEL));
+        int largest = 0;
+        for (Map<String, String> params : requests) {
+            check(params.keySet().equals(expected_params), "unexpected parameters " + params.keySet());
+            check(TOKEN.equals(params.get(BobikConstants.AUTH_TOKEN_LABEL)), "wrong auth token " + params.get(BobikConstants.AUTH_TOKEN_LABEL));
+            check("true".equals(params.get(BobikConstants.SKIP_DATA_TOKEN_LABEL)), "results were asked for");
+            List<String> ids = Arrays.asList(params.get(BobikConstants.JOBS_TOKEN_LABEL).split(","));
+            check(new HashSet<String>(ids).size() == ids.size(), "duplicate job ids in " + ids);
+            check(job_ids.containsAll(ids), "unknown job ids in " + ids);
+            largest = Math.max(largest, ids.size());
+        }
+        check(largest > 1, "no batched status check covered more than one job");
+    }
+
+    /**
+     * The batched response is split into one status per job, keyed by job id, and jobs the server doesn't know are left out
+     * @param bobik
+     * @param job_ids
+     */
+    private static void responseShape(BobikClient bobik, List<String> job_ids) throws Exception {
+        List<String> ids = new ArrayList<String>(job_ids);
+        ids.add("deadbeef");
+        Map<String, JSONObject> statuses = bobik.getStatuses(ids);
+        check(statuses.keySet().equals(new HashSet<String>(job_ids)), "statuses for " + statuses.keySet() + ", expected " + job_ids);
+        for (Map.Entry<String, JSONObject> status : statuses.entrySet()) {
+            JSONObject job_status = status.getValue();
+            check(status.getKey().equals(job_status.getString(BobikConstants.JOB_TOKEN_LABEL)), "status filed under the wrong job id");
+            check(job_status.getDouble(BobikConstants.PROGRESS_JSON_LABEL) == 1.0, "finished job reports progress " + job_status.get(BobikConstants.PROGRESS_JSON_LABEL));
+            check(!job_status.has(BobikConstants.RESULTS_TOKEN_LABEL), "batched status carries results");
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+
+    /**
+     * Serves the Bobik API from memory on a local port, so that the client's requests go over the wire as usual.
+     * Jobs progress linearly over JOB_DURATION_MS; the parameters of every batched status check are kept.
+     */
+    private static class StandInServer implements HttpHandler {
+
+        private final HttpServer server;
+        private final Map<String, Long> started = Collections.synchronizedMap(new HashMap<String, Long>());
+        private final List<Map<String, String>> batchedStatusRequests = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+        private final AtomicInteger ids = new AtomicInteger();
+
+        StandInServer() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this);
+            server.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v1/jobs";
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        List<Map<String, String>> getBatchedStatusRequests() {
+            synchronized (batchedStatusRequests) {
+                return new ArrayList<Map<String, String>>(batchedStatusRequests);
+            }
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                byte[] body = respond(exchange).toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } catch (JSONException e) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private JSONObject respond(HttpExchange exchange) throws IOException, JSONException {
+            JSONObject response = new JSONObject();
+            if (exchange.getRequestMethod().equals("POST")) {
+                String job_id = "job" + ids.incrementAndGet();
+                started.put(job_id, System.currentTimeMillis());
+                response.put(BobikConstants.JOB_TOKEN_LABEL, job_id);
+                return response;
+            }
+            Map<String, String> params = new HashMap<String, String>();
+            for (String pair : exchange.getRequestURI().getRawQuery().split("&")) {
+                int eq = pair.indexOf('=');
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+            String batch = params.get(BobikConstants.JOBS_TOKEN_LABEL);
+            if (batch != null) {
+                batchedStatusRequests.add(params);
+                JSONArray statuses = new JSONArray();
+                for (String job_id : batch.split(",")) {
+                    if (started.containsKey(job_id))
+                        statuses.put(getStatus(job_id));
+                }
+                response.put(BobikConstants.JOBS_TOKEN_LABEL, statuses);
+                return response;
+            }
+            response = getStatus(params.get(BobikConstants.JOB_TOKEN_LABEL));
+            if (!Boolean.parseBoolean(params.get(BobikConstants.SKIP_DATA_TOKEN_LABEL)))
+                response.put(BobikConstants.RESULTS_TOKEN_LABEL, new JSONObject().put("http://example.com/", new JSONObject()));
+            return response;
+        }
+
+        private JSONObject getStatus(String job_id) throws JSONException {
+            long elapsed = System.currentTimeMillis() - started.get(job_id);
+            JSONObject status = new JSONObject();
+            status.put(BobikConstants.JOB_TOKEN_LABEL, job_id);
+            status.put(BobikConstants.PROGRESS_JSON_LABEL, Math.min(1.0, (double)elapsed / JOB_DURATION_MS));
+            status.put(BobikConstants.ESTIMATED_TIME_REMAINING_TOKEN_LABEL, Math.max(0, JOB_DURATION_MS - elapsed));
+            return status;
+        }
+    }
+}